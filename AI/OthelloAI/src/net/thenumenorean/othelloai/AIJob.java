@@ -1,13 +1,11 @@
 package net.thenumenorean.othelloai;
 
-import java.util.Stack;
+import java.util.concurrent.Semaphore;
 
-import net.thenumenorean.othelloai.DecisionTree.DecisionTreeNode;
-import net.thenumenorean.othelloai.OthelloAI.ThreadCounter;
 import net.thenumenorean.othelloai.board.Move;
 import net.thenumenorean.othelloai.board.OthelloBoard;
 import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
-import net.thenumenorean.othelloai.board.PositionValue;
+import net.thenumenorean.othelloai.eval.Evaluator;
 
 /**
  * Runs computation algorithms for the AI.
@@ -18,18 +16,19 @@ import net.thenumenorean.othelloai.board.PositionValue;
 public class AIJob implements Runnable {
 
 	private OthelloAI othelloAI;
-	private OthelloBoard board;
-	private PositionValue pv;
-	private DecisionTreeNode node;
-	private ThreadCounter runningThreads;
+	private Evaluator evaluator;
+	private int node;
+	private Semaphore idleWorkers;
 
-	public AIJob(OthelloAI othelloAI, OthelloBoard board, PositionValue pv, DecisionTreeNode node,
-			ThreadCounter runningThreads) {
+	/**
+	 * @param idleWorkers
+	 *            Released when the job finishes, to free up its worker
+	 */
+	public AIJob(OthelloAI othelloAI, Evaluator evaluator, int node, Semaphore idleWorkers) {
 		this.othelloAI = othelloAI;
-		this.board = board;
-		this.pv = pv;
+		this.evaluator = evaluator;
 		this.node = node;
-		this.runningThreads = runningThreads;
+		this.idleWorkers = idleWorkers;
 	}
 
 	@Override
@@ -40,157 +39,60 @@ public class AIJob implements Runnable {
 		 * propagate it up the line to other moves.
 		 */
 
-		node.beingProcessed = true;
+		// System.err.println("Starting job on " + node);
 
-		// System.err.println("Starting job on " + node.getMove());
-		Thread.currentThread().setName("AIJob-" + node.getMove() + "-" + Thread.currentThread().getId());
+		DecisionTree tree = othelloAI.decisionTree;
+		NodeArena arena = tree.getArena();
 
-		// The thread must finish to decrease the counter or there wont be any
-		// new threads.
+		// The job must release its worker or there wont be any new jobs.
 		try {
-			OthelloBoard previous = updateBoardForMove(board, node);
-			OthelloBoard current = previous.copy();
-			if (node.getMove().equals(Move.NO_MOVE)) {// Eventually replace with
-														// pv
-														// value for no move
-														// case.
-				node.baseValue = 0;
-				node.smartValue = 0;
+			OthelloBoard current = tree.getBoardBefore(node);
+			Move move = arena.getMove(node);
+			OthelloSide side = arena.getSide(node);
+			if (move.equals(Move.NO_MOVE)) {// Eventually replace with pv value
+											// for no move case.
+				arena.setValues(node, 0, 0);
 			} else {
-				current.move(node.getMove(), node.getSide());
-
-				int baseValueGained = getValueDifference(previous, current);
-				if (othelloAI.LOCAL_SIDE != node.getSide()) {
-					baseValueGained *= -1;
+				int square = move.toSquare();
+				long flips = current.getFlips(square, side);
+				if (flips == 0)
+					throw new InternalError("Invalid Move US " + move);
+
+				// The change in the board's value for the local side, negated
+				// for the opponent's moves. The local side's own moves are
+				// valued from the square played and the pieces it flips,
+				// rather than the whole board before and after.
+				long local = current.getBits(othelloAI.LOCAL_SIDE);
+				long other = current.getBits(othelloAI.LOCAL_SIDE.opposite());
+				int baseValueGained;
+				if (othelloAI.LOCAL_SIDE == side) {
+					baseValueGained = evaluator.evaluateMove(local, other, square, flips);
+				} else {
+					baseValueGained = evaluator.evaluate(local, other)
+							- evaluator.evaluate(local & ~flips, other | flips | 1L << square);
 				}
-				node.baseValue = baseValueGained;
-				node.smartValue = baseValueGained;
+				current.makeMove(square, flips, side);
+				arena.setValues(node, baseValueGained, baseValueGained);
 			}
+			tree.saveSnapshot(node, current);
 			if (othelloAI.LOCAL_SIDE == OthelloSide.BLACK) {
-				node.score = current.countBlack() - current.countWhite();
+				arena.setScore(node, current.countBlack() - current.countWhite());
 			} else {
-				node.score = current.countWhite() - current.countBlack();
+				arena.setScore(node, current.countWhite() - current.countBlack());
 			}
 
-			OthelloSide nextSide = node.getSide().opposite();
-			Move[] nextMoves = current.getValidMoves(nextSide);
-			for (Move move : nextMoves) {
-				DecisionTreeNode childNode = othelloAI.decisionTree.new DecisionTreeNode(move, nextSide);
-				node.addChild(childNode);
-			}
-			
-			if(node.getParent() != null)
-				node.getParent().recalculateSmartValue();
-			
+			OthelloSide nextSide = side.opposite();
+			tree.addChildren(node, current.getValidMoves(nextSide), nextSide);
+
+			int parent = arena.getParent(node);
+			if (parent != NodeArena.NONE)
+				tree.recalculateSmartValue(parent);
+
 		} catch (Exception s) {
 			s.printStackTrace();
 		} finally {
-
-			runningThreads.dec();
-			node.beingProcessed = false;
-		}
-
-	}
-
-	/**
-	 * Creates a new OthelloBoard with the given board as a template, then does
-	 * all the moves leading from the top of the DecisionTree to the given node
-	 * to the board.
-	 * 
-	 * The given move will not have been done on the board, only its
-	 * predecessors.
-	 * 
-	 * @param base
-	 *            Board to copy
-	 * @param node
-	 *            Node to iterate moves from
-	 * @return A new OthelloBoard
-	 */
-	public static OthelloBoard updateBoardForMove(OthelloBoard base, DecisionTreeNode node) {
-
-		Stack<Move> moves = new Stack<Move>();
-		OthelloSide side = node.getSide();
-
-		DecisionTreeNode tmp = node;
-		while (tmp.getParent() != null) {
-			tmp = tmp.getParent();
-			moves.push(tmp.getMove());
-			side = side.opposite();
-		}
-
-		while (!moves.isEmpty()) {
-			Move nextMove = moves.pop();
-			if (!tmp.equals(Move.NO_MOVE))
-				base.move(nextMove, side);
-			side = side.opposite();
+			idleWorkers.release();
 		}
 
-		return base;
-	}
-
-	/**
-	 * Computes the difference between the values of two boards.
-	 * 
-	 * @param prevBoard
-	 *            The previous board configuration
-	 * @param currBoard
-	 *            The current board configuration after a move was played
-	 * @return The value gained/lost from the prevBoard to the currBoard.
-	 */
-	public int getValueDifference(OthelloBoard prevBoard, OthelloBoard currBoard) {
-		int prevBoardVal = 0;
-		int currBoardVal = 0;
-		for (int i = 0; i < 8; i++) {
-			for (int j = 0; j < 8; j++) {
-				if (prevBoard.occupied(i, j)) {
-					if ((prevBoard.get(OthelloSide.BLACK, i, j) && othelloAI.LOCAL_SIDE == OthelloSide.BLACK)
-							|| (prevBoard.get(OthelloSide.WHITE, i, j) && othelloAI.LOCAL_SIDE == OthelloSide.WHITE)) {// If
-																														// the
-																														// tile
-																														// is
-																														// yours,
-																														// add
-																														// the
-																														// value
-																														// of
-																														// it
-																														// to
-																														// the
-																														// total,
-																														// otherwise
-																														// subtract
-																														// it.
-						prevBoardVal += pv.getValueOfLocation(i, j);
-					} else {
-						prevBoardVal -= pv.getValueOfLocation(i, j);
-					}
-				}
-
-				if (currBoard.occupied(i, j)) {
-					if ((currBoard.get(OthelloSide.BLACK, i, j) && othelloAI.LOCAL_SIDE == OthelloSide.BLACK)
-							|| (currBoard.get(OthelloSide.WHITE, i, j) && othelloAI.LOCAL_SIDE == OthelloSide.WHITE)) {// If
-																														// the
-																														// tile
-																														// is
-																														// yours,
-																														// add
-																														// the
-																														// value
-																														// of
-																														// it
-																														// to
-																														// the
-																														// total,
-																														// otherwise
-																														// subtract
-																														// it.
-						currBoardVal += pv.getValueOfLocation(i, j);
-					} else {
-						currBoardVal -= pv.getValueOfLocation(i, j);
-					}
-				}
-			}
-		}
-		return currBoardVal - prevBoardVal;
 	}
 }
@@ -1,204 +1,601 @@
 package net.thenumenorean.othelloai;
 
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
 
 import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard;
 import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
 
 /**
  * Represents everything discovered by the AI
  * 
+ * Nodes live in a NodeArena and are referred to by index. The root node
+ * stands for the current position, and its children are the possible next
+ * moves.
+ * 
  * @author Francesco
  *
  */
 public class DecisionTree {
 
-	private ConcurrentLinkedQueue<DecisionTreeNode> nextMoves;
+	private NodeArena arena;
+	private int root;
 	private OthelloSide currentTurn;
+	// The position at the root, kept apart from the board the InputListener
+	// updates so jobs never see a move the tree has not caught up with
+	private OthelloBoard board;
+	// Nodes at depths divisible by this keep a snapshot of their board, or 0
+	// for none
+	private int snapshotInterval;
 	private OthelloAI othelloAI;
 
+	// Nodes that have not been expanded yet
+	private NodeFrontier frontier;
+
+	// For reporting how much of the arena is recycled between moves
+	private long reusedAtLastMove;
+
+	/**
+	 * Number of buckets used to pick which nodes to evict. Nodes further than
+	 * this from the principal variation share the last bucket.
+	 */
+	private static final int EVICTION_BUCKETS = 1024;
+
+	// Most nodes to keep, or 0 for no limit
+	private int nodeBudget;
+	// Nodes in the tree when it was last walked, and arena allocations then
+	private int liveAtWalk;
+	private long allocatedAtWalk;
+	// Set when evict freed nothing, until a move drops part of the tree
+	private boolean evictionStalled;
+
 	public DecisionTree(OthelloAI othelloAI, OthelloSide currentTurn) {
 		this.othelloAI = othelloAI;
 		this.currentTurn = currentTurn;
-		nextMoves = new ConcurrentLinkedQueue<DecisionTreeNode>();
+		board = new OthelloBoard();
+		snapshotInterval = 1;
+		arena = new NodeArena();
+		frontier = new NodeFrontier();
+		root = newRoot(0);
+		liveAtWalk = 1;
+		allocatedAtWalk = arena.getAllocated();
+	}
+
+	/**
+	 * Makes an empty root for the current position.
+	 */
+	private int newRoot(int depth) {
+		return arena.allocate(Move.NO_MOVE, currentTurn.opposite(), NodeArena.NONE, depth);
+	}
+
+	/**
+	 * @return the arena holding the nodes of this tree
+	 */
+	public NodeArena getArena() {
+		return arena;
+	}
+
+	/**
+	 * Gets the first possible next move. The rest follow through
+	 * NodeArena.getNextSibling.
+	 * 
+	 * @return The first child of the root, or NodeArena.NONE if there are none
+	 */
+	public int getFirstPossibleNextMove() {
+		return arena.getFirstChild(root);
+	}
+
+	/**
+	 * Adds a move for the current player to the top of the tree.
+	 * 
+	 * @param m
+	 *            The move
+	 */
+	public void addPossibleNextMove(Move m) {
+		int n = arena.allocate(m, currentTurn, root, arena.getDepth(root) + 1);
+
+		// Keep the moves in the order they were added.
+		int last = arena.getFirstChild(root);
+		if (last == NodeArena.NONE) {
+			arena.setFirstChild(root, n);
+		} else {
+			while (arena.getNextSibling(last) != NodeArena.NONE)
+				last = arena.getNextSibling(last);
+			arena.setNextSibling(last, n);
+		}
+		frontier.add(n, arena.getDepth(n));
+	}
+
+	/**
+	 * Expands a node by giving it a child for each of the given moves, and
+	 * adds the children to the frontier to be expanded in turn.
+	 * 
+	 * @param node
+	 *            The node being expanded
+	 * @param moves
+	 *            The moves possible after the node's move
+	 * @param side
+	 *            The side making those moves
+	 */
+	public void addChildren(int node, Move[] moves, OthelloSide side) {
+		int depth = arena.getDepth(node) + 1;
+		int first = NodeArena.NONE;
+		int last = NodeArena.NONE;
+		for (Move m : moves) {
+			int child = arena.allocate(m, side, node, depth);
+			if (last == NodeArena.NONE)
+				first = child;
+			else
+				arena.setNextSibling(last, child);
+			last = child;
+		}
+
+		// Publish the finished list with a single volatile write, so readers
+		// that find it through getFirstChild see every child and sibling link.
+		arena.setFirstChild(node, first);
+		for (int child = first; child != NodeArena.NONE; child = arena.getNextSibling(child))
+			frontier.add(child, depth);
 	}
 
-	public ConcurrentLinkedQueue<DecisionTreeNode> getPossibleNextMoves() {
-		return nextMoves;
+	/**
+	 * Gets the nodes waiting to be expanded, shallowest first. Nodes are added
+	 * as they are created, so nothing needs to search the tree for them.
+	 * 
+	 * @return The frontier of the tree
+	 */
+	public NodeFrontier getFrontier() {
+		return frontier;
 	}
 
 	/**
-	 * Check that the given move is valid. If so, reduce the tree to just
-	 * children of the passed move, since we don't care about the others
-	 * anymore.
+	 * Reduce the tree to just children of the passed move, since we don't care
+	 * about the others anymore. If the move is not in the tree, the tree is
+	 * emptied.
+	 * 
+	 * The discarded subtrees are released to the arena as a whole, so this
+	 * takes time in the number of possible moves rather than the size of the
+	 * tree, apart from finding the nodes left to expand.
 	 * 
 	 * The given move is assumed to be a move by the current player.
 	 * 
+	 * Nothing may be expanding nodes while this runs, since the frontier is
+	 * rebuilt from the remaining tree.
+	 * 
 	 * @param m
 	 *            The move that occurred.
 	 */
 	public void moveOccured(Move m) {
-
-		Iterator<DecisionTreeNode> iter = nextMoves.iterator();
-		while(iter.hasNext()) {
-			DecisionTreeNode test = iter.next();
-			if(test.move.equals(m)) {
-				nextMoves = test.children;
-				
-				Iterator<DecisionTreeNode> nextMovesIter = nextMoves.iterator();
-				while(nextMovesIter.hasNext()) {
-					nextMovesIter.next().setParent(null);
-				}
-				
-				test.setParent(null);
-				currentTurn = currentTurn.opposite();
-				return;
+		long start = System.nanoTime();
+		long reused = arena.getReused() - reusedAtLastMove;
+		frontier.clear();
+
+		int oldRoot = root;
+		int kept = NodeArena.NONE;
+		int n = arena.getFirstChild(oldRoot);
+		while (n != NodeArena.NONE) {
+			int next = arena.getNextSibling(n);
+			if (kept == NodeArena.NONE && arena.getMove(n).equals(m)) {
+				kept = n;
+				arena.setParent(n, NodeArena.NONE);
+				arena.setNextSibling(n, NodeArena.NONE);
+			} else {
+				arena.release(n);
 			}
+			n = next;
+		}
+		arena.setFirstChild(oldRoot, NodeArena.NONE);
+		arena.release(oldRoot);
+
+		board.move(m, currentTurn);
+		currentTurn = currentTurn.opposite();
+		if (kept != NodeArena.NONE) {
+			root = kept;
+		} else {
+			// The move was never added to the tree, for instance because it
+			// was chosen by the endgame solver. Start again from an empty
+			// tree, which the AIThread refills from the board.
+			System.err.println("Move not in DecisionTree, clearing it: " + m);
+			root = newRoot(arena.getDepth(oldRoot) + 1);
 		}
+		refillFrontier();
+		evictionStalled = false;
 
-		throw new InternalError("Move passed that isnt a valid option: " + m);
+		reusedAtLastMove = arena.getReused();
+		System.err.println("DecisionTree: " + reused + " nodes reused since last move, " + frontier.size()
+				+ " left to expand, pause " + (System.nanoTime() - start) / 1000 + "us");
+	}
 
+	/**
+	 * Rebuilds the frontier from the unexpanded nodes left in the tree, and
+	 * counts the nodes in it. Only needed after nodes were dropped from the
+	 * tree.
+	 */
+	private void refillFrontier() {
+		frontier.clear();
+
+		NodeArena a = arena;
+		int live = 1;
+		// Walk the subtree depth first without a stack, using the parent
+		// links to climb back up.
+		int n = a.getFirstChild(root);
+		while (n != NodeArena.NONE) {
+			live++;
+			int child = a.getFirstChild(n);
+			if (child != NodeArena.NONE) {
+				n = child;
+				continue;
+			}
 
-	}
+			frontier.add(n, a.getDepth(n));
+			while (n != root && a.getNextSibling(n) == NodeArena.NONE)
+				n = a.getParent(n);
+			n = n == root ? NodeArena.NONE : a.getNextSibling(n);
+		}
 
-	public OthelloSide getNextTurnPlayer() {
-		return currentTurn;
+		liveAtWalk = live;
+		allocatedAtWalk = a.getAllocated();
 	}
 
 	/**
-	 * Represents a single move in the tree.
+	 * Limits the size of the tree. Once it holds this many nodes, evict
+	 * should be called to make room.
 	 * 
-	 * @author Francesco
-	 *
+	 * @param nodes
+	 *            Most nodes to keep, or 0 for no limit
 	 */
-	public class DecisionTreeNode implements Comparable<DecisionTreeNode> {
-
-		/**
-		 * the value this specific move gets
-		 */
-		public int baseValue;
-
-		/**
-		 * the value dependent on possible future moves
-		 */
-		public int smartValue;
+	public void setNodeBudget(int nodes) {
+		nodeBudget = nodes;
+	}
 
-		/**
-		 * technical score at this point in the game
-		 */
-		public int score;
+	/**
+	 * @return the number of nodes in the tree. Counts every allocation since
+	 *         the tree was last walked, so it may run a little high while
+	 *         nodes are being added.
+	 */
+	public int getLiveNodes() {
+		return (int) (liveAtWalk + arena.getAllocated() - allocatedAtWalk);
+	}
 
-		private ConcurrentLinkedQueue<DecisionTreeNode> children;
-		private DecisionTreeNode parent;
-		private Move move;
+	/**
+	 * @return true if the tree has reached its node budget
+	 */
+	public boolean isOverBudget() {
+		return nodeBudget > 0 && getLiveNodes() >= nodeBudget;
+	}
 
-		private OthelloSide side;
-		
-		public boolean beingProcessed;
+	/**
+	 * @return false if the last eviction freed nothing and no move has been
+	 *         made since, so evicting again would only walk the tree for
+	 *         nothing
+	 */
+	public boolean canEvict() {
+		return !evictionStalled;
+	}
 
-		public DecisionTreeNode(Move m, OthelloSide side) {
-			children = new ConcurrentLinkedQueue<DecisionTreeNode>();
-			this.move = m;
-			this.side = side;
+	/**
+	 * Shrinks the tree to three quarters of its node budget by dropping the
+	 * least promising lines.
+	 * 
+	 * A node's distance from the principal variation is how much worse its
+	 * smart value is than its best sibling's, for the side choosing between
+	 * them, added up along the path from the root. Whole subtrees are dropped
+	 * from the most distant down, so the moves that minimax would actually
+	 * play are never evicted. Only as many of the nodes at the last distance
+	 * reached are dropped as it takes to get down to the target, so the tree
+	 * doesn't shrink much further than that.
+	 * 
+	 * Nothing may be expanding nodes while this runs.
+	 * 
+	 * @return The number of nodes evicted
+	 */
+	public int evict() {
+		long start = System.nanoTime();
+		// Count exactly rather than trusting the estimate.
+		refillFrontier();
+		int before = liveAtWalk;
+		int target = before - nodeBudget / 4 * 3;
+		if (nodeBudget <= 0 || target <= 0)
+			return 0;
+
+		int[] histogram = new int[EVICTION_BUCKETS];
+		scanByDistance(histogram, 0, 0);
+
+		// Find the distance at which enough nodes have been freed, without
+		// touching the nodes at distance 0. Everything further away goes,
+		// and just enough of the nodes at that distance to make up the rest.
+		int threshold = EVICTION_BUCKETS - 1;
+		int freed = 0;
+		while (threshold > 0 && freed + histogram[threshold] < target)
+			freed += histogram[threshold--];
+		int quota = threshold > 0 ? target - freed : 0;
+
+		scanByDistance(null, threshold, quota);
+		refillFrontier();
+
+		int evicted = before - liveAtWalk;
+		evictionStalled = evicted == 0;
+		System.err.println("DecisionTree: evicted " + evicted + " nodes " + threshold + " or further from the PV, "
+				+ liveAtWalk + " left, pause " + (System.nanoTime() - start) / 1000 + "us");
+		return evicted;
+	}
 
-			baseValue = Integer.MIN_VALUE;
-			smartValue = Integer.MIN_VALUE;
-			score = Integer.MIN_VALUE;
-			beingProcessed = false;
-		}
+	/**
+	 * Walks the tree working out each node's distance from the principal
+	 * variation, either counting the nodes at each distance or dropping the
+	 * subtrees beyond a distance.
+	 * 
+	 * @param histogram
+	 *            Where to count the nodes by distance, or null to drop them
+	 * @param threshold
+	 *            Distance beyond which to drop subtrees, when not counting
+	 * @param quota
+	 *            Most nodes at exactly the threshold to drop as well, when
+	 *            not counting
+	 */
+	private void scanByDistance(int[] histogram, int threshold, int quota) {
+		NodeArena a = arena;
+		// Distance of each level of the current path, and the best value
+		// among the children at that level.
+		int[] distances = new int[64];
+		int[] bests = new int[64];
+
+		int level = 0;
+		int p = root;
+		int prev = NodeArena.NONE;
+		int n = a.getFirstChild(root);
+		bests[0] = bestChildValue(p);
+		while (n != NodeArena.NONE) {
+			int next = a.getNextSibling(n);
+			long far = (level == 0 ? 0 : distances[level - 1]) + distanceFromBest(p, n, bests[level]);
+			int distance = (int) Math.max(0, Math.min(far, EVICTION_BUCKETS - 1));
+
+			boolean drop = false;
+			if (histogram == null && distance > threshold) {
+				drop = true;
+			} else if (histogram == null && distance == threshold && quota > 0) {
+				// Only drop subtrees that fit in what is left of the quota.
+				// Larger ones are searched for smaller subtrees to drop.
+				int count = countAtSameDistance(n, distance == EVICTION_BUCKETS - 1);
+				if (count <= quota) {
+					drop = true;
+					quota -= count;
+				}
+			}
 
-		@Override
-		public int compareTo(DecisionTreeNode o) {
-			return smartValue - o.smartValue;
-		}
+			if (drop) {
+				// Unlink the subtree and give it back to the arena.
+				if (prev == NodeArena.NONE)
+					a.setFirstChild(p, next);
+				else
+					a.setNextSibling(prev, next);
+				a.release(n);
+				n = next;
+			} else {
+				if (histogram != null)
+					histogram[distance]++;
+
+				int child = a.getFirstChild(n);
+				if (child != NodeArena.NONE) {
+					level++;
+					if (level == distances.length) {
+						distances = Arrays.copyOf(distances, level * 2);
+						bests = Arrays.copyOf(bests, level * 2);
+					}
+					distances[level - 1] = distance;
+					bests[level] = bestChildValue(n);
+					p = n;
+					prev = NodeArena.NONE;
+					n = child;
+					continue;
+				}
+				prev = n;
+				n = next;
+			}
 
-		public DecisionTreeNode getParent() {
-			return parent;
+			while (n == NodeArena.NONE && p != root) {
+				prev = p;
+				n = a.getNextSibling(p);
+				p = a.getParent(p);
+				level--;
+			}
 		}
+	}
 
-		public void setParent(DecisionTreeNode parent) {
-			this.parent = parent;
+	/**
+	 * Counts the nodes of a subtree that are as far from the principal
+	 * variation as its top, which are those reached only through children as
+	 * good as their best sibling.
+	 * 
+	 * @param top
+	 *            Top of the subtree
+	 * @param lastBucket
+	 *            True if the top is in the last bucket, which every node
+	 *            below it shares
+	 * @return The number of nodes
+	 */
+	private int countAtSameDistance(int top, boolean lastBucket) {
+		NodeArena a = arena;
+		int[] stack = new int[64];
+		int size = 0;
+		stack[size++] = top;
+
+		int count = 0;
+		while (size > 0) {
+			int n = stack[--size];
+			count++;
+			int best = bestChildValue(n);
+			for (int child = a.getFirstChild(n); child != NodeArena.NONE; child = a.getNextSibling(child)) {
+				if (!lastBucket && distanceFromBest(n, child, best) != 0)
+					continue;
+				if (size == stack.length)
+					stack = Arrays.copyOf(stack, size * 2);
+				stack[size++] = child;
+			}
 		}
+		return count;
+	}
 
-		/**
-		 * @return the children
-		 */
-		public ConcurrentLinkedQueue<DecisionTreeNode> getChildren() {
-			return children;
+	/**
+	 * Gets the value of the child the node's side would choose. A node on the
+	 * local side is followed by the enemy's moves, so the worst case, or most
+	 * negative, is assumed.
+	 * 
+	 * @return The value, or Integer.MIN_VALUE if no child has one yet
+	 */
+	private int bestChildValue(int node) {
+		boolean localSide = arena.getSide(node) == othelloAI.LOCAL_SIDE;
+		int best = Integer.MIN_VALUE;
+		for (int child = arena.getFirstChild(node); child != NodeArena.NONE; child = arena.getNextSibling(child)) {
+			int value = arena.getSmartValue(child);
+			if (value == Integer.MIN_VALUE)
+				continue;
+			if (best == Integer.MIN_VALUE || (localSide ? value < best : value > best))
+				best = value;
 		}
+		return best;
+	}
 
-		/**
-		 * @return the move
-		 */
-		public Move getMove() {
-			return move;
-		}
+	/**
+	 * Gets how much worse a child is than the best of its siblings. Children
+	 * that have not been valued yet count as being as good as the best.
+	 */
+	private long distanceFromBest(int node, int child, int best) {
+		long value = arena.getSmartValue(child);
+		if (value == Integer.MIN_VALUE || best == Integer.MIN_VALUE)
+			return 0;
+		return arena.getSide(node) == othelloAI.LOCAL_SIDE ? value - best : best - value;
+	}
 
-		public void addChild(DecisionTreeNode n) {
-			n.setParent(this);
-			children.add(n);
-		}
+	public OthelloSide getNextTurnPlayer() {
+		return currentTurn;
+	}
 
-		/**
-		 * @return the side
-		 */
-		public OthelloSide getSide() {
-			return side;
-		}
+	/**
+	 * @return a copy of the position at the top of the tree
+	 */
+	public OthelloBoard getBoard() {
+		return board.copy();
+	}
 
-		/*
-		 * @Override public boolean equals(Object o) { return
-		 * ((DecisionTreeNode)o).move.equals(move) &&
-		 * ((DecisionTreeNode)o).parent.equals(parent); }
-		 */
+	/**
+	 * Sets how densely nodes keep a copy of their board. Snapshots cost
+	 * NodeArena.BYTES_PER_SNAPSHOT each, and every node without one has to
+	 * replay moves from its closest ancestor with one when expanded.
+	 * 
+	 * @param interval
+	 *            1 for every node, k for every k-th ply, or 0 to always
+	 *            replay from the top of the tree
+	 */
+	public void setSnapshotInterval(int interval) {
+		snapshotInterval = interval;
+	}
 
-		public void recalculateSmartValue() {
+	/**
+	 * Keeps the board after a node's move, if the node is at a depth that
+	 * should have one.
+	 * 
+	 * @param node
+	 *            The node just expanded
+	 * @param after
+	 *            The board after the node's move
+	 */
+	public void saveSnapshot(int node, OthelloBoard after) {
+		if (snapshotInterval > 0 && arena.getDepth(node) % snapshotInterval == 0)
+			arena.setSnapshot(node, after.getBits(OthelloSide.BLACK), after.getBits(OthelloSide.WHITE));
+	}
 
-			// Should only occur if children havent been added yet.
-			if (children.isEmpty()) {
-				return;
-			}
+	/**
+	 * Creates the board a node's move is made on, starting from the closest
+	 * ancestor with a snapshot, or the top of the tree, and making the moves
+	 * from there down.
+	 * 
+	 * @param node
+	 *            The node
+	 * @return A new OthelloBoard, without the node's own move
+	 */
+	public OthelloBoard getBoardBefore(int node) {
+		NodeArena a = arena;
+
+		int[] path = new int[snapshotInterval > 0 ? snapshotInterval : 16];
+		int count = 0;
+		int n = a.getParent(node);
+		while (n != root && !a.hasSnapshot(n)) {
+			if (count == path.length)
+				path = Arrays.copyOf(path, count * 2);
+			path[count++] = n;
+			n = a.getParent(n);
+		}
 
-			Iterator<DecisionTreeNode> iterator = children.iterator();
-			int minimax = iterator.next().smartValue;
-			while (iterator.hasNext()) {
-				int next = iterator.next().smartValue;
-				
-				if(next == Integer.MIN_VALUE)
-					continue;
-				
-				if (side == DecisionTree.this.othelloAI.LOCAL_SIDE) {
-					// CHild nodes are the enemies, so we assume worst case, or
-					// most negative
+		OthelloBoard b;
+		if (n == root)
+			b = board.copy();
+		else
+			b = new OthelloBoard(a.getSnapshotBlack(n), a.getSnapshotWhite(n), a.getSide(n).opposite());
 
-					if (minimax > next)
-						minimax = next;
+		// Moves have to be made from the top down.
+		for (int i = count - 1; i >= 0; i--)
+			b.move(a.getMove(path[i]), a.getSide(path[i]));
+		return b;
+	}
 
-				} else if (minimax < next) {
-					minimax = next;
+	/**
+	 * Recalculates the smart value of a node from its children, and carries
+	 * any change on up towards the root, stopping at the first node whose
+	 * value stays the same.
+	 * 
+	 * Safe to call from many threads at once without locking. Each node's
+	 * values are replaced with a compare and set, and recalculated again if
+	 * another thread changed them in between. A thread that finds nothing to
+	 * change stops without writing, so one working from older children could
+	 * still set a stale value after it. The thread that sets a value
+	 * therefore reads the children again, and only moves on once the value
+	 * matches them, so a node always ends up matching its children.
+	 * 
+	 * @param node
+	 *            The node to update
+	 */
+	public void recalculateSmartValue(int node) {
+		NodeArena a = arena;
+		for (int n = node; n != NodeArena.NONE; n = a.getParent(n)) {
+			boolean changed = false;
+			while (true) {
+				long old = a.getValues(n);
+
+				// Children that have not been valued yet are skipped. If
+				// none have, there is nothing to carry up.
+				int minimax = bestChildValue(n);
+				if (minimax == Integer.MIN_VALUE)
+					return;
+
+				int base = NodeArena.baseValue(old);
+				// Only the root is never valued itself.
+				int smartValue = minimax + (base == Integer.MIN_VALUE ? 0 : base);
+				if (smartValue == NodeArena.smartValue(old)) {
+					if (!changed)
+						return;
+					break;
 				}
-			}
-			int oldSV = smartValue;
 
-			smartValue = minimax + baseValue;
-
-			if (smartValue != oldSV && parent != null)
-				parent.recalculateSmartValue();
-		}
-		
-		@Override
-		public String toString() {
-			String out = "";
-			
-			DecisionTreeNode tmp = this;
-			while (tmp != null) {
-				out += "->" + tmp.getMove();
-				tmp = tmp.getParent();
+				// Go round again after setting the value too, to check it
+				// against the children as they are now.
+				if (a.compareAndSetValues(n, old, base, smartValue))
+					changed = true;
 			}
-			return out;
 		}
+	}
 
+	/**
+	 * Describes the line of moves leading to a node.
+	 * 
+	 * @param node
+	 *            The node
+	 * @return The moves from the node back up to the root
+	 */
+	public String toString(int node) {
+		StringBuilder out = new StringBuilder();
+		for (int n = node; n != NodeArena.NONE; n = arena.getParent(n))
+			out.append("->").append(arena.getMove(n));
+		return out.toString();
 	}
 
 }
@@ -17,9 +17,10 @@ import net.thenumenorean.othelloai.comms.CommLink;
 public class InputListener implements Runnable {
 
 	/**
-	 * How long to wait in between sending the current best move
+	 * How long to wait in between sending the current best move when the game
+	 * is not timed
 	 */
-	private static final long STD_DELAY = 10000;
+	public static final long STD_DELAY = 10000;
 	private OthelloAI othelloAI;
 	private CommLink link;
 	private boolean stop;
@@ -47,24 +48,31 @@ public class InputListener implements Runnable {
 			
 			System.err.println("Received move " + m);
 			
-			if(!m.equals(Move.NO_MOVE))
-			{
-				othelloAI.board.move(m, othelloAI.LOCAL_SIDE.opposite());
-			}
+			// Passes are played too, so the board knows whose turn it is.
+			othelloAI.board.move(m, othelloAI.LOCAL_SIDE.opposite());
 				
 			if(!m.equals(Move.NO_MOVE) || !firstMove) {
 				firstMove = false;
 				othelloAI.boardChanged(m);
 			}
 
-			try {
-				Thread.sleep(STD_DELAY);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			// Budget the whole move once, so everything below shares it.
+			long deadline = System.currentTimeMillis() + othelloAI.getTimeBudget();
+
+			// The tree is built in the background, so give it time to grow.
+			// Searches run in getBestMove do their own timing, and there is
+			// nothing to think about with a single legal move.
+			if (!othelloAI.searchesOnRequest()
+					&& Long.bitCount(othelloAI.board.getMoveMask(othelloAI.LOCAL_SIDE)) > 1) {
+				try {
+					Thread.sleep(Math.max(0, deadline - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			}
 
-			Move next = othelloAI.getBestMove();
+			Move next = othelloAI.getBestMove(deadline);
 			System.err.println("Sending move " + next);
 			othelloAI.board.move(next, othelloAI.LOCAL_SIDE);
 			link.sendMove(next);
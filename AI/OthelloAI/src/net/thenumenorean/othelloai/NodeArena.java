@@ -0,0 +1,442 @@
+package net.thenumenorean.othelloai;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+
+/**
+ * Storage for the nodes of a DecisionTree. Rather than one object per node,
+ * every field is kept in its own primitive array and a node is just an index
+ * into them, which takes a fraction of the memory and keeps the fields of
+ * neighbouring nodes together.
+ * 
+ * The arrays are allocated in fixed size chunks as nodes are added, so
+ * existing nodes never move. A node's fields may be read by any thread that
+ * received its index through a thread safe handoff, such as the frontier,
+ * or from getFirstChild, which is volatile so that a node's children are
+ * complete before anyone can find them.
+ * 
+ * Subtrees that are no longer needed are handed back with release, which
+ * takes constant time. Released subtrees are kept on a free list threaded
+ * through nextSibling, and only broken up into single nodes as allocate
+ * reuses them, so a node's children are put on the list when the node
+ * itself is reused.
+ * 
+ * @author Francesco
+ *
+ */
+public class NodeArena {
+
+	/**
+	 * Index meaning no node
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Move value for a pass
+	 */
+	public static final int PASS = 64;
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << 12;
+
+	private static final int FLAG_WHITE = 1;
+
+	// Both values Integer.MIN_VALUE, for a node that has not been valued
+	private static final long UNVALUED = pack(Integer.MIN_VALUE, Integer.MIN_VALUE);
+
+	/**
+	 * Memory taken by each node
+	 */
+	public static final int BYTES_PER_NODE = 32;
+
+	/**
+	 * Memory taken by each board snapshot
+	 */
+	public static final int BYTES_PER_SNAPSHOT = 16;
+
+	/**
+	 * The most nodes an arena can hold
+	 */
+	public static final int MAX_NODES = MAX_CHUNKS << CHUNK_BITS;
+
+	// the square played, or PASS
+	private final byte[][] move = new byte[MAX_CHUNKS][];
+	// FLAG_ bits
+	private final byte[][] flags = new byte[MAX_CHUNKS][];
+	// plies below the top of the tree when the node was created
+	private final short[][] depth = new short[MAX_CHUNKS][];
+	// the value dependent on possible future moves in the high half, and the
+	// value this specific move gets in the low half, so both change together
+	private final AtomicLongArray[] values = new AtomicLongArray[MAX_CHUNKS];
+	// technical score at this point in the game
+	private final int[][] score = new int[MAX_CHUNKS][];
+	private final int[][] parent = new int[MAX_CHUNKS][];
+	// volatile, so that setting it publishes the children below
+	private final AtomicIntegerArray[] firstChild = new AtomicIntegerArray[MAX_CHUNKS];
+	private final int[][] nextSibling = new int[MAX_CHUNKS][];
+	// slot holding the board after the move, or NONE
+	private final int[][] snapshot = new int[MAX_CHUNKS][];
+
+	// Board snapshots, kept apart from the nodes since only some nodes have
+	// one
+	private final long[][] snapshotBlack = new long[MAX_CHUNKS][];
+	private final long[][] snapshotWhite = new long[MAX_CHUNKS][];
+	private final AtomicInteger snapshotSize = new AtomicInteger();
+	private volatile int snapshotChunks = 0;
+	// slots of reused nodes' snapshots, guarded by freeLock
+	private int[] freeSnapshots = new int[16];
+	private volatile int freeSnapshotCount = 0;
+
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile int chunks = 0;
+
+	private final Object freeLock = new Object();
+	// first released node not yet reused, linked through nextSibling
+	private volatile int freeHead = NONE;
+	private long released = 0;
+	// only written under freeLock
+	private volatile long reused = 0;
+
+	/**
+	 * Adds a node with no children.
+	 * 
+	 * @param m
+	 *            The move the node represents
+	 * @param side
+	 *            The side making the move
+	 * @param parentNode
+	 *            The parent node, or NONE
+	 * @param nodeDepth
+	 *            Plies below the top of the tree
+	 * @return The new node
+	 */
+	public int allocate(Move m, OthelloSide side, int parentNode, int nodeDepth) {
+		int n = freeHead == NONE ? NONE : takeFree();
+		if (n == NONE) {
+			n = size.getAndIncrement();
+			if (n >>> CHUNK_BITS >= chunks)
+				addChunks(n >>> CHUNK_BITS);
+		}
+
+		int c = n >>> CHUNK_BITS;
+		int i = n & CHUNK_MASK;
+		move[c][i] = (byte) (m.equals(Move.NO_MOVE) ? PASS : m.toSquare());
+		flags[c][i] = (byte) (side == OthelloSide.WHITE ? FLAG_WHITE : 0);
+		depth[c][i] = (short) nodeDepth;
+		values[c].set(i, UNVALUED);
+		score[c][i] = Integer.MIN_VALUE;
+		parent[c][i] = parentNode;
+		firstChild[c].set(i, NONE);
+		nextSibling[c][i] = NONE;
+		snapshot[c][i] = NONE;
+		return n;
+	}
+
+	/**
+	 * Allocates chunks up to and including the given one.
+	 */
+	private synchronized void addChunks(int last) {
+		if (last >= MAX_CHUNKS)
+			throw new OutOfMemoryError("DecisionTree is full");
+
+		for (int c = chunks; c <= last; c++) {
+			move[c] = new byte[CHUNK_SIZE];
+			flags[c] = new byte[CHUNK_SIZE];
+			depth[c] = new short[CHUNK_SIZE];
+			values[c] = new AtomicLongArray(CHUNK_SIZE);
+			score[c] = new int[CHUNK_SIZE];
+			parent[c] = new int[CHUNK_SIZE];
+			firstChild[c] = new AtomicIntegerArray(CHUNK_SIZE);
+			nextSibling[c] = new int[CHUNK_SIZE];
+			snapshot[c] = new int[CHUNK_SIZE];
+		}
+		chunks = Math.max(chunks, last + 1);
+	}
+
+	/**
+	 * Takes a node off the free list, putting its children on in its place.
+	 * 
+	 * @return The node, or NONE if the list is empty
+	 */
+	private int takeFree() {
+		synchronized (freeLock) {
+			int n = freeHead;
+			if (n == NONE)
+				return NONE;
+
+			int next = getNextSibling(n);
+			int child = getFirstChild(n);
+			if (child != NONE) {
+				int last = child;
+				while (getNextSibling(last) != NONE)
+					last = getNextSibling(last);
+				setNextSibling(last, next);
+				next = child;
+			}
+			freeHead = next;
+			reused++;
+
+			int slot = snapshot[n >>> CHUNK_BITS][n & CHUNK_MASK];
+			if (slot != NONE) {
+				if (freeSnapshotCount == freeSnapshots.length)
+					freeSnapshots = Arrays.copyOf(freeSnapshots, freeSnapshotCount * 2);
+				freeSnapshots[freeSnapshotCount++] = slot;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Keeps a copy of the board after a node's move. The node must not have
+	 * one already.
+	 * 
+	 * @param n
+	 *            The node
+	 * @param black
+	 *            Bitboard of black pieces
+	 * @param white
+	 *            Bitboard of white pieces
+	 */
+	public void setSnapshot(int n, long black, long white) {
+		int slot = NONE;
+		if (freeSnapshotCount > 0) {
+			synchronized (freeLock) {
+				if (freeSnapshotCount > 0)
+					slot = freeSnapshots[--freeSnapshotCount];
+			}
+		}
+		if (slot == NONE) {
+			slot = snapshotSize.getAndIncrement();
+			if (slot >>> CHUNK_BITS >= snapshotChunks)
+				addSnapshotChunks(slot >>> CHUNK_BITS);
+		}
+
+		snapshotBlack[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = black;
+		snapshotWhite[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = white;
+		snapshot[n >>> CHUNK_BITS][n & CHUNK_MASK] = slot;
+	}
+
+	/**
+	 * Allocates snapshot chunks up to and including the given one.
+	 */
+	private synchronized void addSnapshotChunks(int last) {
+		if (last >= MAX_CHUNKS)
+			throw new OutOfMemoryError("DecisionTree snapshots are full");
+
+		for (int c = snapshotChunks; c <= last; c++) {
+			snapshotBlack[c] = new long[CHUNK_SIZE];
+			snapshotWhite[c] = new long[CHUNK_SIZE];
+		}
+		snapshotChunks = Math.max(snapshotChunks, last + 1);
+	}
+
+	/**
+	 * @return true if the board after the node's move was kept
+	 */
+	public boolean hasSnapshot(int n) {
+		return snapshot[n >>> CHUNK_BITS][n & CHUNK_MASK] != NONE;
+	}
+
+	/**
+	 * @return the black pieces after the node's move, if hasSnapshot
+	 */
+	public long getSnapshotBlack(int n) {
+		int slot = snapshot[n >>> CHUNK_BITS][n & CHUNK_MASK];
+		return snapshotBlack[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the white pieces after the node's move, if hasSnapshot
+	 */
+	public long getSnapshotWhite(int n) {
+		int slot = snapshot[n >>> CHUNK_BITS][n & CHUNK_MASK];
+		return snapshotWhite[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+	}
+
+	/**
+	 * Hands a node and everything below it back to be reused. The node must
+	 * already be unlinked from the tree, and nothing may be using any node of
+	 * the subtree.
+	 * 
+	 * @param n
+	 *            Top of the subtree
+	 */
+	public void release(int n) {
+		synchronized (freeLock) {
+			setNextSibling(n, freeHead);
+			freeHead = n;
+			released++;
+		}
+	}
+
+	/**
+	 * @return the number of subtrees released so far
+	 */
+	public long getReleased() {
+		synchronized (freeLock) {
+			return released;
+		}
+	}
+
+	/**
+	 * @return the number of released nodes allocated again so far
+	 */
+	public long getReused() {
+		return reused;
+	}
+
+	/**
+	 * @return the number of times allocate has been called, counting reused
+	 *         nodes
+	 */
+	public long getAllocated() {
+		return size.get() + reused;
+	}
+
+	/**
+	 * Gets how many nodes fit in the given amount of memory.
+	 * 
+	 * @param megabytes
+	 *            Memory for the arena
+	 * @param snapshotInterval
+	 *            How often nodes keep a snapshot of the board, as in
+	 *            DecisionTree.setSnapshotInterval
+	 * @return Number of nodes
+	 */
+	public static int nodesForMegabytes(int megabytes, int snapshotInterval) {
+		long bytesPerNode = BYTES_PER_NODE;
+		if (snapshotInterval > 0)
+			bytesPerNode += (BYTES_PER_SNAPSHOT + snapshotInterval - 1) / snapshotInterval;
+		return (int) Math.min(MAX_NODES, (long) megabytes * 1024 * 1024 / bytesPerNode);
+	}
+
+	/**
+	 * @return the number of node slots taken from the arrays, whether in use
+	 *         or released
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the move of the node
+	 */
+	public Move getMove(int n) {
+		int sq = move[n >>> CHUNK_BITS][n & CHUNK_MASK];
+		return sq == PASS ? Move.NO_MOVE : Move.fromSquare(sq);
+	}
+
+	/**
+	 * @return the square played by the node, or PASS
+	 */
+	public int getSquare(int n) {
+		return move[n >>> CHUNK_BITS][n & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the side making the node's move
+	 */
+	public OthelloSide getSide(int n) {
+		return (flags[n >>> CHUNK_BITS][n & CHUNK_MASK] & FLAG_WHITE) != 0 ? OthelloSide.WHITE : OthelloSide.BLACK;
+	}
+
+	public int getDepth(int n) {
+		return depth[n >>> CHUNK_BITS][n & CHUNK_MASK];
+	}
+
+	public int getBaseValue(int n) {
+		return baseValue(getValues(n));
+	}
+
+	public int getSmartValue(int n) {
+		return smartValue(getValues(n));
+	}
+
+	/**
+	 * Gets both values of a node at once, for use with compareAndSetValues.
+	 * 
+	 * @return the packed values
+	 */
+	public long getValues(int n) {
+		return values[n >>> CHUNK_BITS].get(n & CHUNK_MASK);
+	}
+
+	public void setValues(int n, int base, int smart) {
+		values[n >>> CHUNK_BITS].set(n & CHUNK_MASK, pack(base, smart));
+	}
+
+	/**
+	 * Sets both values of a node if they have not changed since they were
+	 * read.
+	 * 
+	 * @param expected
+	 *            The packed values as read by getValues
+	 * @return false if the values had changed, and nothing was set
+	 */
+	public boolean compareAndSetValues(int n, long expected, int base, int smart) {
+		return values[n >>> CHUNK_BITS].compareAndSet(n & CHUNK_MASK, expected, pack(base, smart));
+	}
+
+	public static int baseValue(long values) {
+		return (int) values;
+	}
+
+	public static int smartValue(long values) {
+		return (int) (values >> 32);
+	}
+
+	private static long pack(int base, int smart) {
+		return (long) smart << 32 | base & 0xffffffffL;
+	}
+
+	public int getScore(int n) {
+		return score[n >>> CHUNK_BITS][n & CHUNK_MASK];
+	}
+
+	public void setScore(int n, int value) {
+		score[n >>> CHUNK_BITS][n & CHUNK_MASK] = value;
+	}
+
+	public int getParent(int n) {
+		return parent[n >>> CHUNK_BITS][n & CHUNK_MASK];
+	}
+
+	public void setParent(int n, int p) {
+		parent[n >>> CHUNK_BITS][n & CHUNK_MASK] = p;
+	}
+
+	/**
+	 * @return the first child of the node, or NONE if it has not been
+	 *         expanded
+	 */
+	public int getFirstChild(int n) {
+		return firstChild[n >>> CHUNK_BITS].get(n & CHUNK_MASK);
+	}
+
+	/**
+	 * Sets the first child of a node. This is a volatile write, so everything
+	 * done to the children and their siblings before it is seen by any thread
+	 * that then reads them through getFirstChild.
+	 */
+	public void setFirstChild(int n, int child) {
+		firstChild[n >>> CHUNK_BITS].set(n & CHUNK_MASK, child);
+	}
+
+	/**
+	 * @return the next child of the node's parent, or NONE
+	 */
+	public int getNextSibling(int n) {
+		return nextSibling[n >>> CHUNK_BITS][n & CHUNK_MASK];
+	}
+
+	public void setNextSibling(int n, int sibling) {
+		nextSibling[n >>> CHUNK_BITS][n & CHUNK_MASK] = sibling;
+	}
+}
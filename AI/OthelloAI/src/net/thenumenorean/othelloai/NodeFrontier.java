@@ -0,0 +1,88 @@
+package net.thenumenorean.othelloai;
+
+/**
+ * The nodes of a DecisionTree waiting to be expanded, handed out shallowest
+ * first. Nodes are kept as plain indices in one stack per depth, so adding
+ * and taking a node allocates nothing.
+ * 
+ * @author Francesco
+ *
+ */
+public class NodeFrontier {
+
+	// Deeper nodes share the last stack
+	private static final int MAX_DEPTH = 128;
+
+	private final int[][] stacks = new int[MAX_DEPTH][];
+	private final int[] sizes = new int[MAX_DEPTH];
+	private int size;
+	// no stack below this one has anything in it
+	private int lowest;
+
+	public NodeFrontier() {
+		for (int d = 0; d < MAX_DEPTH; d++)
+			stacks[d] = new int[16];
+		size = 0;
+		lowest = MAX_DEPTH;
+	}
+
+	/**
+	 * Adds a node to be expanded.
+	 * 
+	 * @param node
+	 *            The node
+	 * @param depth
+	 *            Depth of the node in the tree
+	 */
+	public synchronized void add(int node, int depth) {
+		int d = Math.min(Math.max(depth, 0), MAX_DEPTH - 1);
+		if (sizes[d] == stacks[d].length) {
+			int[] bigger = new int[stacks[d].length * 2];
+			System.arraycopy(stacks[d], 0, bigger, 0, sizes[d]);
+			stacks[d] = bigger;
+		}
+		stacks[d][sizes[d]++] = node;
+		size++;
+		lowest = Math.min(lowest, d);
+		notify();
+	}
+
+	/**
+	 * Takes the shallowest node, waiting up to the given time for one to be
+	 * added.
+	 * 
+	 * @param timeout
+	 *            Milliseconds to wait
+	 * @return The node, or NodeArena.NONE if there was none
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public synchronized int poll(long timeout) throws InterruptedException {
+		if (size == 0)
+			wait(timeout);
+		if (size == 0)
+			return NodeArena.NONE;
+
+		while (sizes[lowest] == 0)
+			lowest++;
+		size--;
+		return stacks[lowest][--sizes[lowest]];
+	}
+
+	/**
+	 * Removes every node.
+	 */
+	public synchronized void clear() {
+		for (int d = 0; d < MAX_DEPTH; d++)
+			sizes[d] = 0;
+		size = 0;
+		lowest = MAX_DEPTH;
+	}
+
+	/**
+	 * @return the number of nodes waiting
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
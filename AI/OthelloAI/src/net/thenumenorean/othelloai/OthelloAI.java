@@ -1,22 +1,79 @@
 package net.thenumenorean.othelloai;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.thenumenorean.othelloai.DecisionTree.DecisionTreeNode;
 import net.thenumenorean.othelloai.board.Move;
 import net.thenumenorean.othelloai.board.OthelloBoard;
 import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
 import net.thenumenorean.othelloai.board.PositionValue;
+import net.thenumenorean.othelloai.book.OpeningBook;
 import net.thenumenorean.othelloai.comms.CommLink;
 import net.thenumenorean.othelloai.comms.StdCommLink;
+import net.thenumenorean.othelloai.eval.Evaluator;
+import net.thenumenorean.othelloai.eval.PatternEvaluator;
+import net.thenumenorean.othelloai.search.AlphaBetaSearch;
+import net.thenumenorean.othelloai.search.EndgameSolver;
+import net.thenumenorean.othelloai.search.TimeManager;
+import net.thenumenorean.othelloai.search.TranspositionTable;
 
 public class OthelloAI {
 
 	public static final int MAX_THREADS = 10;
 
+	/**
+	 * Memory given to the transposition table of the alpha-beta search
+	 */
+	public static final int TRANSPOSITION_TABLE_MB = 64;
+
+	/**
+	 * Default number of empty squares at which to switch to solving the game
+	 * exactly
+	 */
+	public static final int ENDGAME_EMPTIES = 14;
+
+	/**
+	 * Memory given to the DecisionTree. Its least promising lines are evicted
+	 * once it is full.
+	 */
+	public static final int DECISION_TREE_MB = 256;
+
+	/**
+	 * How often DecisionTree nodes keep a snapshot of their board, so that
+	 * expanding their children does not replay moves from the top of the
+	 * tree. 1 keeps one on every node, 0 on none.
+	 */
+	public static final int SNAPSHOT_INTERVAL = 1;
+
+	/**
+	 * The ways the AI can choose its moves.
+	 * 
+	 * @author Francesco
+	 *
+	 */
+	public enum Strategy {
+		/**
+		 * Expand a shared DecisionTree in the background with many threads,
+		 * and pick the move with the best minimax value when asked
+		 */
+		DECISION_TREE,
+
+		/**
+		 * Run an iterative deepening alpha-beta search when asked for a move
+		 */
+		ALPHA_BETA
+	}
+
+	public final Strategy STRATEGY;
+
 	public final OthelloSide LOCAL_SIDE;
 
 	public OthelloBoard board;
@@ -27,12 +84,37 @@ public class OthelloAI {
 
 	public DecisionTree decisionTree;
 
+	// Only used by alpha-beta, so null for the DecisionTree strategy
+	public TranspositionTable transpositionTable;
+
+	private Evaluator evaluator;
+	private AlphaBetaSearch alphaBetaSearch;
+
+	private TimeManager timeManager;
+
+	private EndgameSolver endgameSolver;
+	private int endgameEmpties;
+
+	private OpeningBook openingBook;
+
 	public static void main(String[] args) {
 
 		System.err.println("Starting...");
 
 		CommLink link = new StdCommLink();
-		OthelloAI ai = new OthelloAI(link, OthelloSide.valueOf(args[0].toUpperCase()));
+		Strategy strategy = args.length > 1 ? Strategy.valueOf(args[1].toUpperCase()) : Strategy.DECISION_TREE;
+		OthelloAI ai = new OthelloAI(link, OthelloSide.valueOf(args[0].toUpperCase()), strategy,
+				TRANSPOSITION_TABLE_MB);
+		if (args.length > 2)
+			ai.setEvaluator(parseEvaluator(args[2]));
+		if (args.length > 3) {
+			try {
+				ai.setOpeningBook(OpeningBook.load(new File(args[3])));
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new InternalError("Could not load opening book " + args[3]);
+			}
+		}
 
 		ai.run();
 
@@ -45,29 +127,142 @@ public class OthelloAI {
 	 *            Link for communications
 	 */
 	public OthelloAI(CommLink link, OthelloSide local) {
+		this(link, local, Strategy.DECISION_TREE, TRANSPOSITION_TABLE_MB);
+	}
+
+	/**
+	 * Creates a new OthelloAI using the given link for communication.
+	 * 
+	 * @param link
+	 *            Link for communications
+	 * @param local
+	 *            Side the AI is playing
+	 * @param strategy
+	 *            How to choose moves
+	 * @param tableSizeMB
+	 *            Memory to give the transposition table, if the strategy uses
+	 *            one
+	 */
+	public OthelloAI(CommLink link, OthelloSide local, Strategy strategy, int tableSizeMB) {
+		this(link, local, strategy, tableSizeMB, NodeArena.nodesForMegabytes(DECISION_TREE_MB, SNAPSHOT_INTERVAL));
+	}
+
+	/**
+	 * Creates a new OthelloAI using the given link for communication.
+	 * 
+	 * @param link
+	 *            Link for communications
+	 * @param local
+	 *            Side the AI is playing
+	 * @param strategy
+	 *            How to choose moves
+	 * @param tableSizeMB
+	 *            Memory to give the transposition table, if the strategy uses
+	 *            one
+	 * @param treeNodes
+	 *            Most nodes to keep in the DecisionTree, or 0 for no limit
+	 */
+	public OthelloAI(CommLink link, OthelloSide local, Strategy strategy, int tableSizeMB, int treeNodes) {
 
 		LOCAL_SIDE = local;
+		STRATEGY = strategy;
 
 		this.link = link;
 		board = new OthelloBoard();
+		if (strategy == Strategy.ALPHA_BETA)
+			transpositionTable = new TranspositionTable(tableSizeMB);
+		setEvaluator(PositionValue.SUPER);
+		timeManager = new TimeManager(InputListener.STD_DELAY);
+		endgameSolver = new EndgameSolver();
+		endgameEmpties = ENDGAME_EMPTIES;
 		inputListener = new InputListener(this);
 		aiThread = new AIThread(this);
 		decisionTree = new DecisionTree(this, OthelloSide.BLACK); // Black
 																	// always
 																	// starts
 																	// games
+		decisionTree.setNodeBudget(treeNodes);
+		decisionTree.setSnapshotInterval(SNAPSHOT_INTERVAL);
+
+	}
+
+	/**
+	 * Gets an evaluator by name: the name of a PositionValue, "pattern" for
+	 * pattern weights seeded from PositionValue.SUPER, or the path of a
+	 * pattern weight file.
+	 * 
+	 * @param name
+	 *            Name of the evaluator
+	 * @return The evaluator
+	 */
+	public static Evaluator parseEvaluator(String name) {
+		if (name.equalsIgnoreCase("pattern"))
+			return PatternEvaluator.seeded(PositionValue.SUPER);
+
+		File file = new File(name);
+		if (file.isFile()) {
+			try {
+				return PatternEvaluator.load(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new InternalError("Could not load weights from " + file);
+			}
+		}
+
+		return PositionValue.valueOf(name.toUpperCase());
+	}
 
+	/**
+	 * Sets how positions are valued by both strategies. Must be called before
+	 * run.
+	 * 
+	 * @param evaluator
+	 *            The evaluator
+	 */
+	public void setEvaluator(Evaluator evaluator) {
+		this.evaluator = evaluator;
+		if (transpositionTable != null)
+			alphaBetaSearch = new AlphaBetaSearch(transpositionTable, evaluator);
+	}
+
+	/**
+	 * Sets the book to play the opening from, before any searching.
+	 * 
+	 * @param book
+	 *            The book, or null for none
+	 */
+	public void setOpeningBook(OpeningBook book) {
+		openingBook = book;
+	}
+
+	/**
+	 * @return the book's move for the current board, or null if it has none
+	 */
+	private Move getBookMove() {
+		return openingBook == null ? null : openingBook.lookup(board);
 	}
 
 	public void run() {
 		// Start all required threads after initializing
-		new Thread(inputListener).start();
+		Thread listener = new Thread(inputListener);
+		listener.start();
+
+		if (STRATEGY == Strategy.ALPHA_BETA) {
+			// Searching only happens when a move is requested.
+			link.sendInitDone();
+			try {
+				listener.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
 		Thread t = new Thread(aiThread);
 
 		Move[] nextMoves = board.getValidMoves(OthelloSide.BLACK);
 		for (Move move : nextMoves) {
-			DecisionTreeNode childNode = decisionTree.new DecisionTreeNode(move, OthelloSide.BLACK);
-			decisionTree.getPossibleNextMoves().add(childNode);
+			decisionTree.addPossibleNextMove(move);
 			System.err.println("Start moves " + move);
 		}
 
@@ -90,29 +285,159 @@ public class OthelloAI {
 	 * This should cause the AI to reevaluate everything it is doing.
 	 */
 	public void boardChanged(Move m) {
-		aiThread.boardChanged(m);
+		if (STRATEGY == Strategy.DECISION_TREE)
+			aiThread.boardChanged(m);
 	}
 
-	public Move getBestMove() {
+	/**
+	 * Gets how long to think about our next move, based on the time left on
+	 * our clock and the number of moves left in the game. Should be called
+	 * once per move, since the clock keeps running while we think.
+	 * 
+	 * @return Milliseconds to think for
+	 */
+	public long getTimeBudget() {
+		long left = link.getMillisLeft();
+		long budget = timeManager.getBudget(left, getEmpties());
+		System.err.println("Time left " + left + ", thinking for " + budget);
+		return budget;
+	}
+
+	/**
+	 * @return the number of empty squares on the board
+	 */
+	public int getEmpties() {
+		return 64 - Long.bitCount(board.getBits(OthelloSide.BLACK) | board.getBits(OthelloSide.WHITE));
+	}
+
+	/**
+	 * Sets how many empty squares can be left for the endgame solver to take
+	 * over from the normal strategy.
+	 * 
+	 * @param empties
+	 *            Number of empty squares, 0 to never solve
+	 */
+	public void setEndgameEmpties(int empties) {
+		endgameEmpties = empties;
+	}
+
+	/**
+	 * Whether getBestMove does its own thinking, rather than reporting what
+	 * has been found in the background.
+	 * 
+	 * @return true if the caller should not wait before asking for a move
+	 */
+	public boolean searchesOnRequest() {
+		return STRATEGY == Strategy.ALPHA_BETA || getEmpties() <= endgameEmpties || getBookMove() != null;
+	}
+
+	/**
+	 * @param deadline
+	 *            System.currentTimeMillis() by which the move must be chosen,
+	 *            from getTimeBudget
+	 * @return The move to play
+	 */
+	public Move getBestMove(long deadline) {
 
 		System.err.println("Getting best move...");
 
+		// Nothing to think about, and the tree may not have caught up with
+		// the board yet, since InputListener does not wait for it here.
+		long legal = board.getMoveMask(LOCAL_SIDE);
+		if (legal == 0)
+			return Move.NO_MOVE;
+		if (Long.bitCount(legal) == 1)
+			return Move.fromSquare(Long.numberOfTrailingZeros(legal));
+
+		Move book = getBookMove();
+		if (book != null) {
+			if (board.getToMove() != LOCAL_SIDE)
+				throw new InternalError("Tried to get best move for non-local side");
+
+			System.err.println("Book move " + book);
+			return book;
+		}
+
+		if (getEmpties() <= endgameEmpties) {
+			if (board.getToMove() != LOCAL_SIDE)
+				throw new InternalError("Tried to get best move for non-local side");
+
+			// Keep a quarter of the time for alpha-beta to fall back on.
+			long solveMillis = millisUntil(deadline);
+			if (STRATEGY == Strategy.ALPHA_BETA)
+				solveMillis = solveMillis / 4 * 3;
+			Move solved = endgameSolver.solve(board, solveMillis);
+			if (solved != null)
+				return solved;
+
+			// Fall back on the normal strategy.
+			System.err.println("Endgame solve ran out of time");
+			if (STRATEGY == Strategy.ALPHA_BETA)
+				return searchBestMove(millisUntil(deadline));
+		}
+
+		if (STRATEGY == Strategy.ALPHA_BETA) {
+			if (board.getToMove() != LOCAL_SIDE)
+				throw new InternalError("Tried to get best move for non-local side");
+
+			return searchBestMove(millisUntil(deadline));
+		}
+
+		try {
+			aiThread.awaitTree();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return board.getValidMoves(LOCAL_SIDE)[0];
+		}
+
 		if (decisionTree.getNextTurnPlayer() != LOCAL_SIDE)
 			throw new InternalError("Tried to get best move for non-local side");
 
+		System.err.println("DecisionTree: " + decisionTree.getArena().size() + " nodes");
 		System.err.print("Checking: ");
-		Iterator<DecisionTreeNode> iter = decisionTree.getPossibleNextMoves().iterator();
-		DecisionTreeNode minimax = iter.next();
-		while (iter.hasNext()) {
-			DecisionTreeNode next = iter.next();
+		NodeArena arena = decisionTree.getArena();
+		int minimax = decisionTree.getFirstPossibleNextMove();
+		if (minimax == NodeArena.NONE) {
+			// The tree has not caught up with the board yet.
+			System.err.println("DecisionTree is empty");
+			return board.getValidMoves(LOCAL_SIDE)[0];
+		}
+		for (int next = arena.getNextSibling(minimax); next != NodeArena.NONE; next = arena.getNextSibling(next)) {
 
-			System.err.println(minimax.getMove() + "=" + minimax.smartValue + ", " + next.getMove() + "=" + next.smartValue);
+			System.err.println(arena.getMove(minimax) + "=" + arena.getSmartValue(minimax) + ", "
+					+ arena.getMove(next) + "=" + arena.getSmartValue(next));
 
-			if (minimax.smartValue < next.smartValue)
+			if (arena.getSmartValue(minimax) < arena.getSmartValue(next))
 				minimax = next;
 		}
 
-		return minimax.getMove();
+		return arena.getMove(minimax);
+	}
+
+	/**
+	 * @return the milliseconds left until the deadline, or 0 if it has passed
+	 */
+	private static long millisUntil(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	/**
+	 * Runs the alpha-beta search on the board, and logs the line of play it
+	 * expects.
+	 * 
+	 * @param budget
+	 *            Milliseconds to search for
+	 * @return The best move found
+	 */
+	private Move searchBestMove(long budget) {
+		System.err.println("Transposition table: " + transpositionTable);
+		Move best = alphaBetaSearch.findBestMove(board, budget);
+		System.err.println("Principal variation: " + Arrays.toString(alphaBetaSearch.getPrincipalVariation()) + "="
+				+ alphaBetaSearch.getScore());
+		System.err.println("Transposition table: " + alphaBetaSearch.getTableHits() + " hits, "
+				+ alphaBetaSearch.getTableMisses() + " misses, " + alphaBetaSearch.getTableCollisions()
+				+ " collisions");
+		return best;
 	}
 
 	/**
@@ -128,21 +453,51 @@ public class OthelloAI {
 	 */
 	private class AIThread implements Runnable {
 
+		/**
+		 * How long to wait for new work before checking for a board change
+		 */
+		private static final long POLL_MILLIS = 50;
+
 		private OthelloAI othelloAI;
-		private boolean stop;
-		private Move newMove;
-		private ThreadCounter runningThreads;
+		private volatile boolean stop;
+		// Moves made since the tree was last updated, oldest first
+		private final BlockingQueue<Move> newMoves;
+		// Moves passed to boardChanged, and moves the tree has been updated
+		// with, guarded by this
+		private int movesQueued;
+		private int movesApplied;
+
+		private final int poolSize;
+		private final ExecutorService workers;
+		// One permit per worker, so jobs are only handed out when a worker is
+		// free to run them.
+		private final Semaphore idleWorkers;
 
 		public AIThread(OthelloAI othelloAI) {
 			this.othelloAI = othelloAI;
 			stop = false;
-			newMove = null;
-			runningThreads = new ThreadCounter();
+			newMoves = new LinkedBlockingQueue<Move>();
+
+			poolSize = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+			workers = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("AIJob"));
+			idleWorkers = new Semaphore(poolSize);
 		}
 
-		public void boardChanged(Move m) {
-			newMove = m;
+		public synchronized void boardChanged(Move m) {
+			movesQueued++;
+			newMoves.add(m);
+		}
 
+		/**
+		 * Waits until the tree has been updated with every move passed to
+		 * boardChanged so far, and refilled if that emptied it.
+		 * 
+		 * @throws InterruptedException
+		 *             If interrupted while waiting
+		 */
+		public synchronized void awaitTree() throws InterruptedException {
+			while (movesApplied < movesQueued)
+				wait();
 		}
 
 		@Override
@@ -150,59 +505,65 @@ public class OthelloAI {
 			
 			Thread.currentThread().setName("MainAIThread");
 
-			DecisionTreeSearch searcher = new DecisionTreeSearch(decisionTree.getPossibleNextMoves());
-			(new Thread(searcher)).start();
+			try {
+				while (!stop) {
 
-			while (!stop) {
+					if (!newMoves.isEmpty()) {
+						// Wait for the running jobs to finish with the old tree.
+						idleWorkers.acquire(poolSize);
 
-				if (searcher.finished) {
-					// System.err.println("Restarting searcher...");
-					(new Thread(searcher)).start();
-				}
+						// Both players may have moved since the last check.
+						Move newMove;
+						int applied = 0;
+						while ((newMove = newMoves.poll()) != null) {
+							othelloAI.decisionTree.moveOccured(newMove);
+							applied++;
+						}
 
-				if (newMove != null) {
-					searcher.stop();
-					othelloAI.decisionTree.moveOccured(newMove);
-					newMove = null;
-					
-					if(decisionTree.getPossibleNextMoves().isEmpty()) {
-						Move[] nextMoves = board.getValidMoves(OthelloSide.BLACK);
-						for (Move move : nextMoves) {
-							DecisionTreeNode childNode = decisionTree.new DecisionTreeNode(move, OthelloSide.BLACK);
-							decisionTree.getPossibleNextMoves().add(childNode);
+						if(decisionTree.getFirstPossibleNextMove() == NodeArena.NONE) {
+							Move[] nextMoves = decisionTree.getBoard().getValidMoves(decisionTree.getNextTurnPlayer());
+							for (Move move : nextMoves)
+								decisionTree.addPossibleNextMove(move);
+
+							System.err.println("DecisionTree was empty so readded values: " + Arrays.toString(nextMoves));
 						}
 
-						System.err.println("DecisionTree was empty so readded values: " + decisionTree.getPossibleNextMoves());
-					}
-					searcher = new DecisionTreeSearch(decisionTree.getPossibleNextMoves());
-					(new Thread(searcher)).start();
-					
-					while(runningThreads.val() > 0) {
-						try {
-							Thread.sleep(5);
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
+						synchronized (this) {
+							movesApplied += applied;
+							notifyAll();
 						}
-					}
-					System.err.println("Starting threads again");
 
-				}
+						idleWorkers.release(poolSize);
+						System.err.println("Starting threads again");
+					}
 
-				//System.err.println(searcher.discovered.size());
-				if (!searcher.discovered.isEmpty() && runningThreads.val() < MAX_THREADS) {
-					runningThreads.inc();
+					if (decisionTree.isOverBudget()) {
+						// Once an eviction has freed nothing, don't walk the
+						// tree again until a move has released part of it.
+						if (decisionTree.canEvict()) {
+							idleWorkers.acquire(poolSize);
+							decisionTree.evict();
+							idleWorkers.release(poolSize);
+						}
 
-					(new Thread(new AIJob(othelloAI, board.copy(), PositionValue.SUPER, searcher.discovered.poll(),
-							runningThreads))).start();
+						// Nothing could be evicted, so wait for the next move
+						// to free some of the tree.
+						if (decisionTree.isOverBudget()) {
+							Thread.sleep(POLL_MILLIS);
+							continue;
+						}
+					}
 
+					int next = decisionTree.getFrontier().poll(POLL_MILLIS);
+					if (next != NodeArena.NONE) {
+						idleWorkers.acquire();
+						workers.execute(new AIJob(othelloAI, evaluator, next, idleWorkers));
+					}
 				}
-
-				/*
-				 * try { Thread.sleep(1); } catch (InterruptedException e) { //
-				 * TODO Auto-generated catch block e.printStackTrace(); }
-				 */
-
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				workers.shutdown();
 			}
 
 		}
@@ -217,99 +578,27 @@ public class OthelloAI {
 	}
 
 	/**
-	 * Searches through the given list, adding
+	 * Creates named daemon threads for the worker pools, so they never keep
+	 * the process alive on their own.
 	 * 
 	 * @author Francesco
 	 *
 	 */
-	private class DecisionTreeSearch implements Runnable {
+	private static class DaemonThreadFactory implements ThreadFactory {
 
-		public ConcurrentLinkedQueue<DecisionTreeNode> discovered;
-		public boolean finished;
+		private final String name;
+		private final AtomicInteger count;
 
-		private boolean stop;
-		private ConcurrentLinkedQueue<DecisionTreeNode> init;
-
-		public DecisionTreeSearch(ConcurrentLinkedQueue<DecisionTreeNode> start) {
-			discovered = new ConcurrentLinkedQueue<DecisionTreeNode>();
-			this.init = start;
-			stop = false;
-
-			if (start.isEmpty())
-				System.err.println("empty");
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+			count = new AtomicInteger();
 		}
 
 		@Override
-		public void run() {
-			finished = false;
-			Thread.currentThread().setName("SearchThread");
-			//System.err.println(init);
-			addChildren(init);
-			finished = true;
-		}
-
-		private void addChildren(ConcurrentLinkedQueue<DecisionTreeNode> start) {
-
-			Queue<ConcurrentLinkedQueue<DecisionTreeNode>> next = new LinkedList<ConcurrentLinkedQueue<DecisionTreeNode>>();
-			next.add(start);
-
-			while (!next.isEmpty()) {
-				if (stop)
-					return;
-
-				Iterator<DecisionTreeNode> iter = next.poll().iterator();
-				DecisionTreeNode curr;
-				while (iter.hasNext()) {
-
-					if (stop)
-						return;
-
-					curr = iter.next();
-					// System.err.println("NOd: " + curr.toString() + " " +
-					// curr.checked);
-					if (!curr.beingProcessed && curr.getChildren().isEmpty()) {
-						discovered.add(curr);
-					} else if (!curr.beingProcessed)
-						next.add(curr.getChildren());
-				}
-
-			}
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
 		}
-
-		public void stop() {
-			stop = true;
-		}
-
-	}
-
-	/**
-	 * Simple class to hold an integer which can keep track of the quantity of
-	 * things while being passed around.
-	 * 
-	 * A mutable int.
-	 * 
-	 * @author Francesco
-	 *
-	 */
-	public static class ThreadCounter {
-
-		private int i;
-
-		public ThreadCounter() {
-			i = 0;
-		}
-
-		synchronized public void inc() {
-			i++;
-		}
-
-		synchronized public void dec() {
-			i--;
-		}
-
-		public int val() {
-			return i;
-		}
-
 	}
 }
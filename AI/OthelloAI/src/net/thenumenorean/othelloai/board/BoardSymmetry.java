@@ -0,0 +1,165 @@
+package net.thenumenorean.othelloai.board;
+
+/**
+ * Reflections of bitboards, with squares numbered x + 8 * y. Combining them
+ * gives all eight symmetries of the board.
+ * 
+ * @author Francesco
+ *
+ */
+public class BoardSymmetry {
+
+	/**
+	 * Number of symmetries of the board, counting the identity
+	 */
+	public static final int SYMMETRIES = 8;
+
+	private BoardSymmetry() {
+	}
+
+	/**
+	 * Applies one of the eight symmetries. Bit 2 of the symmetry transposes,
+	 * then bit 0 mirrors and bit 1 flips, so 0 leaves the board unchanged, 3
+	 * rotates it half a turn, 5 rotates it clockwise, 6 anticlockwise and 7
+	 * reflects it about the other diagonal.
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @param symmetry
+	 *            Which symmetry, from 0 to SYMMETRIES - 1
+	 * @return The transformed bitboard
+	 */
+	public static long transform(long b, int symmetry) {
+		if ((symmetry & 4) != 0)
+			b = transpose(b);
+		if ((symmetry & 1) != 0)
+			b = mirrorHorizontal(b);
+		if ((symmetry & 2) != 0)
+			b = flipVertical(b);
+		return b;
+	}
+
+	/**
+	 * Undoes transform.
+	 * 
+	 * @param b
+	 *            A bitboard given by transform
+	 * @param symmetry
+	 *            The symmetry it was transformed by
+	 * @return The original bitboard
+	 */
+	public static long untransform(long b, int symmetry) {
+		if ((symmetry & 2) != 0)
+			b = flipVertical(b);
+		if ((symmetry & 1) != 0)
+			b = mirrorHorizontal(b);
+		if ((symmetry & 4) != 0)
+			b = transpose(b);
+		return b;
+	}
+
+	/**
+	 * @return the square that a symmetry moves the given square to
+	 */
+	public static int transformSquare(int square, int symmetry) {
+		return Long.numberOfTrailingZeros(transform(1L << square, symmetry));
+	}
+
+	/**
+	 * @return the square that a symmetry moves to the given square
+	 */
+	public static int untransformSquare(int square, int symmetry) {
+		return Long.numberOfTrailingZeros(untransform(1L << square, symmetry));
+	}
+
+	/**
+	 * Swaps the rows, so y becomes 7 - y.
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The reflected bitboard
+	 */
+	public static long flipVertical(long b) {
+		return Long.reverseBytes(b);
+	}
+
+	/**
+	 * Swaps the columns, so x becomes 7 - x.
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The reflected bitboard
+	 */
+	public static long mirrorHorizontal(long b) {
+		b = (b >>> 1) & 0x5555555555555555L | (b & 0x5555555555555555L) << 1;
+		b = (b >>> 2) & 0x3333333333333333L | (b & 0x3333333333333333L) << 2;
+		b = (b >>> 4) & 0x0f0f0f0f0f0f0f0fL | (b & 0x0f0f0f0f0f0f0f0fL) << 4;
+		return b;
+	}
+
+	/**
+	 * Reflects the board about the diagonal from (0, 0) to (7, 7), so x and y
+	 * swap.
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The reflected bitboard
+	 */
+	public static long transpose(long b) {
+		long t;
+		t = 0x0f0f0f0f00000000L & (b ^ (b << 28));
+		b ^= t ^ (t >>> 28);
+		t = 0x3333000033330000L & (b ^ (b << 14));
+		b ^= t ^ (t >>> 14);
+		t = 0x5500550055005500L & (b ^ (b << 7));
+		b ^= t ^ (t >>> 7);
+		return b;
+	}
+
+	/**
+	 * Reflects the board about the diagonal from (7, 0) to (0, 7), so (x, y)
+	 * becomes (7 - y, 7 - x).
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The reflected bitboard
+	 */
+	public static long flipAntiDiagonal(long b) {
+		return rotate180(transpose(b));
+	}
+
+	/**
+	 * Rotates the board a quarter turn clockwise, with y increasing down the
+	 * board, so (x, y) becomes (7 - y, x).
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The rotated bitboard
+	 */
+	public static long rotateClockwise(long b) {
+		return mirrorHorizontal(transpose(b));
+	}
+
+	/**
+	 * Rotates the board a quarter turn anticlockwise, so (x, y) becomes (y, 7
+	 * - x).
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The rotated bitboard
+	 */
+	public static long rotateAnticlockwise(long b) {
+		return flipVertical(transpose(b));
+	}
+
+	/**
+	 * Rotates the board half a turn, so (x, y) becomes (7 - x, 7 - y).
+	 * 
+	 * @param b
+	 *            A bitboard
+	 * @return The rotated bitboard
+	 */
+	public static long rotate180(long b) {
+		return Long.reverse(b);
+	}
+}
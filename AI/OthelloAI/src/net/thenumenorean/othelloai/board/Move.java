@@ -44,10 +44,39 @@ public class Move {
 		return y;
 	}
 	
+	/**
+	 * Get the bitboard square for this move, x + 8 * y. If not a move,
+	 * returns -1.
+	 * 
+	 * @return Square index of move
+	 */
+	public int toSquare() {
+		return equals(NO_MOVE) ? -1 : x + 8 * y;
+	}
+
+	/**
+	 * Creates the Move for a bitboard square, or NO_MOVE if the square is
+	 * negative.
+	 * 
+	 * @param square
+	 *            Square index, x + 8 * y
+	 * @return A Move
+	 */
+	public static Move fromSquare(int square) {
+		return square < 0 ? NO_MOVE : new Move(square & 7, square >>> 3);
+	}
+
 	@Override
 	public boolean equals(Object m) {
+		if (!(m instanceof Move))
+			return false;
 		return (((Move) m).getX() == this.getX()) && (((Move) m).getY() == this.getY());
 	}
+
+	@Override
+	public int hashCode() {
+		return x + 8 * y;
+	}
 	
 	@Override
 	public String toString() {
@@ -1,10 +1,11 @@
 package net.thenumenorean.othelloai.board;
 
-import java.util.BitSet;
-import java.util.ArrayList;
+import java.util.Random;
 
 /**
- * Implements a standard 8x8 Othello board. <strong>TODO:</strong> Streamline.
+ * Implements a standard 8x8 Othello board. The board is stored as two
+ * bitboards, one per color, where square (x, y) is bit x + 8 * y. A Zobrist
+ * key of the pieces and side to move is kept up to date by every mutation.
  *
  * @author Brandon Moore
  **/
@@ -27,33 +28,91 @@ public class OthelloBoard {
 
 	}
 
+	// Zobrist keys for a piece of each side on each square, and for white to
+	// move. Fixed seed so keys agree between runs.
+	private static final long[][] ZOBRIST_PIECES = new long[2][64];
+	private static final long ZOBRIST_WHITE_TO_MOVE;
+
+	static {
+		Random rand = new Random(0x0123456789abcdefL);
+		for (int i = 0; i < 64; i++) {
+			ZOBRIST_PIECES[OthelloSide.BLACK.ordinal()][i] = rand.nextLong();
+			ZOBRIST_PIECES[OthelloSide.WHITE.ordinal()][i] = rand.nextLong();
+		}
+		ZOBRIST_WHITE_TO_MOVE = rand.nextLong();
+	}
+
 	// locations that have a black piece
-	BitSet black = new BitSet(64);
-	// locations that have any piece.
-	BitSet taken = new BitSet(64);
+	long black;
+	// locations that have a white piece
+	long white;
+	// the side whose turn it is, changed by every move or pass
+	private OthelloSide toMove;
+	// Zobrist key of the above
+	private long hash;
 
 	public boolean occupied(int x, int y) {
-		return taken.get(x + 8 * y);
+		return ((black | white) & (1L << (x + 8 * y))) != 0;
 	}
 
 	public boolean get(OthelloSide side, int x, int y) {
-		return occupied(x, y) && (black.get(x + 8 * y) == (side == OthelloSide.BLACK));
+		return (getBits(side) & (1L << (x + 8 * y))) != 0;
 	}
 
 	public void set(OthelloSide side, int x, int y) {
-		taken.set(x + 8 * y);
-		black.set(x + 8 * y, side == OthelloSide.BLACK);
+		int square = x + 8 * y;
+		long bit = 1L << square;
+		if ((black & bit) != 0)
+			hash ^= ZOBRIST_PIECES[OthelloSide.BLACK.ordinal()][square];
+		else if ((white & bit) != 0)
+			hash ^= ZOBRIST_PIECES[OthelloSide.WHITE.ordinal()][square];
+		hash ^= ZOBRIST_PIECES[side.ordinal()][square];
+
+		if (side == OthelloSide.BLACK) {
+			black |= bit;
+			white &= ~bit;
+		} else {
+			white |= bit;
+			black &= ~bit;
+		}
+	}
+
+	/**
+	 * Gets the bitboard of all pieces belonging to the given side.
+	 * 
+	 * @param side
+	 *            Side to get the pieces of
+	 * @return A mask with bit x + 8 * y set for every piece of that side
+	 */
+	public long getBits(OthelloSide side) {
+		return side == OthelloSide.BLACK ? black : white;
+	}
+
+	/**
+	 * Gets the side whose turn it is. This is the opposite of whoever made
+	 * the last move or pass, or black on a new board.
+	 * 
+	 * @return The side to move
+	 */
+	public OthelloSide getToMove() {
+		return toMove;
+	}
+
+	/**
+	 * Gets the 64-bit Zobrist key of this position, covering the pieces and
+	 * the side to move. It is updated incrementally, so this is free to call.
+	 * 
+	 * @return The position key
+	 */
+	public long getHash() {
+		return hash;
 	}
 
 	/**
 	 * Returns a copy of this board.
 	 **/
 	public OthelloBoard copy() {
-		OthelloBoard newBoard = new OthelloBoard();
-		newBoard.black = (BitSet) this.black.clone();
-		newBoard.taken = (BitSet) this.taken.clone();
-
-		return newBoard;
+		return new OthelloBoard(black, white, toMove, hash);
 	}
 
 	/**
@@ -61,12 +120,152 @@ public class OthelloBoard {
 	 **/
 	public OthelloBoard() {
 		// Standard setup with 4 pieces in the center.
-		taken.set(3 + 8 * 3);
-		taken.set(3 + 8 * 4);
-		taken.set(4 + 8 * 3);
-		taken.set(4 + 8 * 4);
-		black.set(4 + 8 * 3);
-		black.set(3 + 8 * 4);
+		this((1L << (4 + 8 * 3)) | (1L << (3 + 8 * 4)), (1L << (3 + 8 * 3)) | (1L << (4 + 8 * 4)));
+	}
+
+	/**
+	 * Make a board with the given pieces on it, black to move.
+	 * 
+	 * @param black
+	 *            Bitboard of black pieces
+	 * @param white
+	 *            Bitboard of white pieces
+	 */
+	public OthelloBoard(long black, long white) {
+		this(black, white, OthelloSide.BLACK);
+	}
+
+	/**
+	 * Make a board with the given pieces on it.
+	 * 
+	 * @param black
+	 *            Bitboard of black pieces
+	 * @param white
+	 *            Bitboard of white pieces
+	 * @param toMove
+	 *            The side whose turn it is
+	 */
+	public OthelloBoard(long black, long white, OthelloSide toMove) {
+		this(black, white, toMove, computeHash(black, white, toMove));
+	}
+
+	private OthelloBoard(long black, long white, OthelloSide toMove, long hash) {
+		this.black = black;
+		this.white = white;
+		this.toMove = toMove;
+		this.hash = hash;
+	}
+
+	/**
+	 * Computes the Zobrist key of a position from scratch.
+	 * 
+	 * @param black
+	 *            Bitboard of black pieces
+	 * @param white
+	 *            Bitboard of white pieces
+	 * @param toMove
+	 *            The side whose turn it is
+	 * @return The position key
+	 */
+	public static long computeHash(long black, long white, OthelloSide toMove) {
+		long key = toMove == OthelloSide.WHITE ? ZOBRIST_WHITE_TO_MOVE : 0;
+		for (long b = black; b != 0; b &= b - 1)
+			key ^= ZOBRIST_PIECES[OthelloSide.BLACK.ordinal()][Long.numberOfTrailingZeros(b)];
+		for (long w = white; w != 0; w &= w - 1)
+			key ^= ZOBRIST_PIECES[OthelloSide.WHITE.ordinal()][Long.numberOfTrailingZeros(w)];
+		return key;
+	}
+
+	/**
+	 * Applies one of the eight symmetries of the board.
+	 * 
+	 * @param symmetry
+	 *            Which symmetry, numbered as for BoardSymmetry.transform
+	 * @return A transformed copy of this board, with the same side to move
+	 */
+	public OthelloBoard transform(int symmetry) {
+		return new OthelloBoard(BoardSymmetry.transform(black, symmetry), BoardSymmetry.transform(white, symmetry),
+				toMove);
+	}
+
+	/**
+	 * Tests if some symmetry other than the identity leaves the position
+	 * unchanged, as on the starting board. A search from here reaches most
+	 * positions in several orientations, so it gains the most from keying
+	 * positions by their canonical key.
+	 * 
+	 * @return true if the board is symmetric
+	 */
+	public boolean isSymmetric() {
+		for (int s = 1; s < BoardSymmetry.SYMMETRIES; s++) {
+			if (BoardSymmetry.transform(black, s) == black && BoardSymmetry.transform(white, s) == white)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a key that is the same for every reflection and rotation of this
+	 * position, and for the position with the colors swapped as long as the
+	 * side to move is swapped too.
+	 * 
+	 * @return The canonical key
+	 */
+	public long getCanonicalKey() {
+		long player = getBits(toMove);
+		long opponent = getBits(toMove.opposite());
+		return canonicalKey(player, opponent, canonicalSymmetry(player, opponent));
+	}
+
+	/**
+	 * Chooses which symmetry of a position its canonical key is taken from:
+	 * the one giving the lowest bitboards.
+	 * 
+	 * @param player
+	 *            Bitboard of the side to move
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @return The symmetry, numbered as for BoardSymmetry.transform
+	 */
+	public static int canonicalSymmetry(long player, long opponent) {
+		int best = 0;
+		long bestPlayer = player, bestOpponent = opponent;
+		for (int s = 1; s < BoardSymmetry.SYMMETRIES; s++) {
+			long p = BoardSymmetry.transform(player, s);
+			long o = BoardSymmetry.transform(opponent, s);
+			if (p < bestPlayer || (p == bestPlayer && o < bestOpponent)) {
+				best = s;
+				bestPlayer = p;
+				bestOpponent = o;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Computes the canonical key of a position.
+	 * 
+	 * @param player
+	 *            Bitboard of the side to move
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @param symmetry
+	 *            The position's canonicalSymmetry
+	 * @return The canonical key
+	 */
+	public static long canonicalKey(long player, long opponent, int symmetry) {
+		return computeHash(BoardSymmetry.transform(player, symmetry), BoardSymmetry.transform(opponent, symmetry),
+				OthelloSide.BLACK);
+	}
+
+	/**
+	 * Changes whose turn it is, keeping the key in sync.
+	 */
+	private void setToMove(OthelloSide side) {
+		if (side != toMove) {
+			toMove = side;
+			hash ^= ZOBRIST_WHITE_TO_MOVE;
+		}
 	}
 
 	/**
@@ -76,7 +275,7 @@ public class OthelloBoard {
 	 * @return true if there are no legal moves.
 	 **/
 	public boolean isDone() {
-		return !(hasMoves(OthelloSide.BLACK) || hasMoves(OthelloSide.WHITE));
+		return (getMoveMask(black, white) | getMoveMask(white, black)) == 0;
 	}
 
 	/**
@@ -87,14 +286,7 @@ public class OthelloBoard {
 	 * @return true if there are legal moves.
 	 **/
 	public boolean hasMoves(OthelloSide side) {
-		for (int i = 0; i < 8; i++) {
-			for (int j = 0; j < 8; j++) {
-				if (checkMove(new Move(i, j), side)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return getMoveMask(side) != 0;
 	}
 
 	/**
@@ -102,27 +294,89 @@ public class OthelloBoard {
 	 * 
 	 * @param side
 	 *            Othelloside to check for valid moves.
-	 * @return Move[] containing all valid moves for the given side. Can be
-	 *         empty if no valid moves.
+	 * @return Move[] containing all valid moves for the given side. If there
+	 *         are no valid moves, contains only Move.NO_MOVE.
 	 */
 	public Move[] getValidMoves(OthelloSide side) {
-		// No reason to run hasMoves to check if will require running loop
-		// twice, will return empty array if no valid moves.
-		ArrayList<Move> validMovesList = new ArrayList<Move>();
+		long mask = getMoveMask(side);
+
+		if (mask == 0)
+			return new Move[] { Move.NO_MOVE };
 
+		// Keep the x-then-y order callers have always seen.
+		Move[] validMovesArray = new Move[Long.bitCount(mask)];
+		int n = 0;
 		for (int i = 0; i < 8; i++) {
 			for (int j = 0; j < 8; j++) {
-				Move moveToTest = new Move(i, j);
-				if (checkMove(moveToTest, side)) {
-					validMovesList.add(moveToTest);
+				if ((mask & (1L << (i + 8 * j))) != 0) {
+					validMovesArray[n++] = new Move(i, j);
 				}
 			}
 		}
-		Move[] validMovesArray = new Move[validMovesList.size()];
+		return validMovesArray;
+	}
+
+	/**
+	 * Gets all valid moves for a given side as a mask.
+	 * 
+	 * @param side
+	 *            Othelloside to check for valid moves.
+	 * @return A mask with bit x + 8 * y set for every legal move.
+	 */
+	public long getMoveMask(OthelloSide side) {
+		return side == OthelloSide.BLACK ? getMoveMask(black, white) : getMoveMask(white, black);
+	}
 
-		if (validMovesList.size() == 0)
-			validMovesList.add(Move.NO_MOVE);
-		return validMovesList.toArray(validMovesArray);
+	// Every square except the A and H files, used so runs along a rank or
+	// diagonal cannot wrap around onto the next row.
+	private static final long INNER_FILES = 0x7e7e7e7e7e7e7e7eL;
+
+	/**
+	 * Computes every legal move for a player in one pass. Each of the 8
+	 * directions is flood filled through the opponent's pieces starting at
+	 * the player's pieces (dumb7fill); a run that ends on an empty square is a
+	 * legal move.
+	 * 
+	 * @param player
+	 *            Pieces of the side to move
+	 * @param opponent
+	 *            Pieces of the other side
+	 * @return A mask with bit x + 8 * y set for every legal move.
+	 */
+	public static long getMoveMask(long player, long opponent) {
+		long inner = opponent & INNER_FILES;
+		long moves = fillUp(player, inner, 1) | fillDown(player, inner, 1) | fillUp(player, opponent, 8)
+				| fillDown(player, opponent, 8) | fillUp(player, inner, 7) | fillDown(player, inner, 7)
+				| fillUp(player, inner, 9) | fillDown(player, inner, 9);
+		return moves & ~(player | opponent);
+	}
+
+	/**
+	 * Fills from gen through prop towards higher bit indices, and returns the
+	 * squares one step past the end of each run.
+	 */
+	private static long fillUp(long gen, long prop, int shift) {
+		long flood = prop & (gen << shift);
+		flood |= prop & (flood << shift);
+		flood |= prop & (flood << shift);
+		flood |= prop & (flood << shift);
+		flood |= prop & (flood << shift);
+		flood |= prop & (flood << shift);
+		return flood << shift;
+	}
+
+	/**
+	 * Fills from gen through prop towards lower bit indices, and returns the
+	 * squares one step past the end of each run.
+	 */
+	private static long fillDown(long gen, long prop, int shift) {
+		long flood = prop & (gen >>> shift);
+		flood |= prop & (flood >>> shift);
+		flood |= prop & (flood >>> shift);
+		flood |= prop & (flood >>> shift);
+		flood |= prop & (flood >>> shift);
+		flood |= prop & (flood >>> shift);
+		return flood >>> shift;
 	}
 
 	/**
@@ -147,42 +401,15 @@ public class OthelloBoard {
 	 * @param turn
 	 *            The player making the move.
 	 **/
-	// might be able to do clever stuff with masks and next clear bit
-	// and the like.
 	public boolean checkMove(Move m, OthelloSide turn) {
 		if (m == null || m.equals(Move.NO_MOVE))
 			// passing is only legal if you have no moves
 			return !hasMoves(turn);
 
-		// Make sure the square hasn't already been taken.
-		if (occupied(m.getX(), m.getY())) {
+		if (!onBoard(m.getX(), m.getY()))
 			return false;
-		}
 
-		OthelloSide other = turn.opposite();
-		int X = m.getX();
-		int Y = m.getY();
-		for (int dx = -1; dx <= 1; dx++) {
-			for (int dy = -1; dy <= 1; dy++) {
-				// for each direction
-				if (dy == 0 && dx == 0)
-					continue;
-
-				// is there a capture in that direction?
-				int x = X + dx;
-				int y = Y + dy;
-				if (onBoard(x, y) && get(other, x, y)) {
-					do {
-						x += dx;
-						y += dy;
-					} while (onBoard(x, y) && get(other, x, y));
-					if (onBoard(x, y) && get(turn, x, y)) {
-						return true;
-					}
-				}
-			}
-		}
-		return false;
+		return (getMoveMask(turn) & (1L << (m.getX() + 8 * m.getY()))) != 0;
 	}
 
 	/**
@@ -195,39 +422,149 @@ public class OthelloBoard {
 	 **/
 	public void move(Move m, OthelloSide turn) {
 		// null means pass.
-		if (m == null || m.equals(Move.NO_MOVE))
+		if (m == null || m.equals(Move.NO_MOVE)) {
+			pass(turn);
 			return;
+		}
 
-		if (!checkMove(m, turn)) {
+		long flips = onBoard(m.getX(), m.getY()) ? getFlips(m.toSquare(), turn) : 0;
+		if (flips == 0) {
 			throw new InternalError("Invalid Move US " + m);
 		}
 
-		OthelloSide other = turn.opposite();
-		for (int dx = -1; dx <= 1; dx++) {
-			for (int dy = -1; dy <= 1; dy++) {
-				if (dy == 0 && dx == 0) {
-					continue;
-				}
-				int x = m.getX();
-				int y = m.getY();
-				do {
-					x += dx;
-					y += dy;
-				} while (onBoard(x, y) && get(other, x, y));
-				if (onBoard(x, y) && get(turn, x, y)) {
-					x = m.getX();
-					y = m.getY();
-					x += dx;
-					y += dy;
-					while (onBoard(x, y) && get(other, x, y)) {
-						set(turn, x, y);
-						x += dx;
-						y += dy;
-					}
-				}
-			}
+		makeMove(m.toSquare(), flips, turn);
+	}
+
+	/**
+	 * Computes the pieces that would be flipped if the given side played on
+	 * the given square.
+	 * 
+	 * @param square
+	 *            Square being played, x + 8 * y
+	 * @param turn
+	 *            The player making the move
+	 * @return Mask of flipped pieces, 0 if the move is not legal.
+	 */
+	public long getFlips(int square, OthelloSide turn) {
+		return turn == OthelloSide.BLACK ? getFlips(black, white, square) : getFlips(white, black, square);
+	}
+
+	/**
+	 * Computes the pieces that would be flipped if player played on the given
+	 * square.
+	 * 
+	 * @param player
+	 *            Pieces of the side to move
+	 * @param opponent
+	 *            Pieces of the other side
+	 * @param square
+	 *            Square being played, x + 8 * y
+	 * @return Mask of flipped pieces, 0 if the move is not legal.
+	 */
+	public static long getFlips(long player, long opponent, int square) {
+		long move = 1L << square;
+		if (((player | opponent) & move) != 0)
+			return 0;
+
+		long inner = opponent & INNER_FILES;
+		return flipsUp(move, player, inner, 1) | flipsDown(move, player, inner, 1)
+				| flipsUp(move, player, opponent, 8) | flipsDown(move, player, opponent, 8)
+				| flipsUp(move, player, inner, 7) | flipsDown(move, player, inner, 7)
+				| flipsUp(move, player, inner, 9) | flipsDown(move, player, inner, 9);
+	}
+
+	/**
+	 * Walks from move towards higher bit indices through prop, returning the
+	 * run if it is closed off by one of the player's pieces.
+	 */
+	private static long flipsUp(long move, long player, long prop, int shift) {
+		long run = 0;
+		long next = move << shift;
+		while ((next & prop) != 0) {
+			run |= next;
+			next <<= shift;
 		}
-		set(turn, m.getX(), m.getY());
+		return (next & player) != 0 ? run : 0;
+	}
+
+	/**
+	 * Walks from move towards lower bit indices through prop, returning the
+	 * run if it is closed off by one of the player's pieces.
+	 */
+	private static long flipsDown(long move, long player, long prop, int shift) {
+		long run = 0;
+		long next = move >>> shift;
+		while ((next & prop) != 0) {
+			run |= next;
+			next >>>= shift;
+		}
+		return (next & player) != 0 ? run : 0;
+	}
+
+	/**
+	 * Plays a move whose flips have already been computed with getFlips. The
+	 * move is not validated.
+	 * 
+	 * @param square
+	 *            Square being played, x + 8 * y
+	 * @param flips
+	 *            Flip mask returned by getFlips for this move
+	 * @param turn
+	 *            The player making the move
+	 */
+	public void makeMove(int square, long flips, OthelloSide turn) {
+		xorMove(square, flips, turn);
+		setToMove(turn.opposite());
+	}
+
+	/**
+	 * Takes back a move played with makeMove. Since a move is applied with
+	 * XORs, undoing it reapplies the same masks.
+	 * 
+	 * @param square
+	 *            Square that was played, x + 8 * y
+	 * @param flips
+	 *            Flip mask the move was made with
+	 * @param turn
+	 *            The player who made the move
+	 */
+	public void undoMove(int square, long flips, OthelloSide turn) {
+		xorMove(square, flips, turn);
+		setToMove(turn);
+	}
+
+	/**
+	 * Toggles the placed piece and the flipped pieces of a move, along with
+	 * their Zobrist keys.
+	 */
+	private void xorMove(int square, long flips, OthelloSide turn) {
+		long[] own = ZOBRIST_PIECES[turn.ordinal()];
+		long[] other = ZOBRIST_PIECES[turn.opposite().ordinal()];
+
+		hash ^= own[square];
+		for (long f = flips; f != 0; f &= f - 1) {
+			int i = Long.numberOfTrailingZeros(f);
+			hash ^= own[i] ^ other[i];
+		}
+
+		if (turn == OthelloSide.BLACK) {
+			black ^= flips | (1L << square);
+			white ^= flips;
+		} else {
+			white ^= flips | (1L << square);
+			black ^= flips;
+		}
+	}
+
+	/**
+	 * Passes the turn to the other side. A pass is undone by passing for the
+	 * other side.
+	 * 
+	 * @param turn
+	 *            The player passing
+	 */
+	public void pass(OthelloSide turn) {
+		setToMove(turn.opposite());
 	}
 
 	/**
@@ -236,7 +573,7 @@ public class OthelloBoard {
 	 * @return The number of black stones on the board.
 	 **/
 	public int countBlack() {
-		return black.cardinality();
+		return Long.bitCount(black);
 	}
 
 	/**
@@ -245,8 +582,19 @@ public class OthelloBoard {
 	 * @return The number of white stones on the board.
 	 **/
 	public int countWhite() {
-		BitSet result = (BitSet) taken.clone();
-		result.andNot(black);
-		return result.cardinality();
+		return Long.bitCount(white);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof OthelloBoard))
+			return false;
+		OthelloBoard b = (OthelloBoard) o;
+		return black == b.black && white == b.white && toMove == b.toMove;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
 	}
 }
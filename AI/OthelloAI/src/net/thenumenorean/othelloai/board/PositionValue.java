@@ -1,12 +1,16 @@
 package net.thenumenorean.othelloai.board;
 
+import java.util.Arrays;
+
+import net.thenumenorean.othelloai.eval.Evaluator;
+
 /**
  * Represents how to value specific squares.
  * 
  * @author Francesco
  *
  */
-public enum PositionValue {
+public enum PositionValue implements Evaluator {
 
 	MINIMAL(1, 2, 3, -1, -1), STANDARD(1, 3, 7, -3, -10), AGGRESSIVE(1, 2, 10, -5, -5), SUPER(1,3, 100, -5, 0);
 
@@ -17,7 +21,13 @@ public enum PositionValue {
 	private int adjacentCornerValue;
 	private int noMoveValue;
 
-	private static int BOARD_SIZE = 7; // 1 less than actual side length
+	// getValueOfLocation of each square, by x + 8 * y
+	private final int[] weights;
+	// Squares grouped by value, so a board can be valued one group at a time
+	private final long[] classMasks;
+	private final int[] classWeights;
+
+	private static final int BOARD_SIZE = 7; // 1 less than actual side length
 
 	PositionValue(int interior, int edge, int corner, int adjacentCornerValue, int noMove) {
 		this.interiorValue = interior;
@@ -25,6 +35,84 @@ public enum PositionValue {
 		this.cornerValue = corner;
 		this.adjacentCornerValue = adjacentCornerValue;
 		this.noMoveValue = noMove;
+
+		weights = new int[64];
+		long[] masks = new long[64];
+		int[] values = new int[64];
+		int classes = 0;
+		for (int sq = 0; sq < 64; sq++) {
+			weights[sq] = getValueOfLocation(sq & 7, sq >>> 3);
+
+			int k = 0;
+			while (k < classes && values[k] != weights[sq])
+				k++;
+			if (k == classes)
+				values[classes++] = weights[sq];
+			masks[k] |= 1L << sq;
+		}
+		classMasks = Arrays.copyOf(masks, classes);
+		classWeights = Arrays.copyOf(values, classes);
+	}
+
+	/**
+	 * Gets the value of a square from the precomputed table.
+	 * 
+	 * @param square
+	 *            Square index, x + 8 * y
+	 * @return The same as getValueOfLocation
+	 */
+	public int getWeight(int square) {
+		return weights[square];
+	}
+
+	/**
+	 * @return a copy of the value of every square, indexed by x + 8 * y
+	 */
+	public int[] getWeights() {
+		return weights.clone();
+	}
+
+	/**
+	 * Values a board for one side, adding the value of each of its pieces'
+	 * squares and subtracting the value of the opponent's. Counts the pieces
+	 * in each group of equally valued squares at once, rather than looking at
+	 * every square.
+	 * 
+	 * @param player
+	 *            Bitboard of the side to value the board for
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @return The value of the board
+	 */
+	@Override
+	public int evaluate(long player, long opponent) {
+		int value = 0;
+		for (int k = 0; k < classMasks.length; k++)
+			value += classWeights[k] * (Long.bitCount(player & classMasks[k]) - Long.bitCount(opponent & classMasks[k]));
+		return value;
+	}
+
+	/**
+	 * Gets how much a move changes evaluate for the side making it: the value
+	 * of the square played, plus twice the value of each flipped piece, since
+	 * it is both gained and taken from the opponent.
+	 * 
+	 * @param square
+	 *            Square played, x + 8 * y
+	 * @param flips
+	 *            Bitboard of the pieces the move flips
+	 * @return The change in value
+	 */
+	public int evaluateMove(int square, long flips) {
+		int value = weights[square];
+		for (int k = 0; k < classMasks.length; k++)
+			value += 2 * classWeights[k] * Long.bitCount(flips & classMasks[k]);
+		return value;
+	}
+
+	@Override
+	public int evaluateMove(long player, long opponent, int square, long flips) {
+		return evaluateMove(square, flips);
 	}
 
 	/**
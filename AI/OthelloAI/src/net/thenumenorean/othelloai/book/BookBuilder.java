@@ -0,0 +1,178 @@
+package net.thenumenorean.othelloai.book;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.thenumenorean.othelloai.OthelloAI;
+import net.thenumenorean.othelloai.board.BoardSymmetry;
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.eval.Evaluator;
+import net.thenumenorean.othelloai.train.SelfPlay;
+
+/**
+ * Grows an opening book by self-play. Every move played in the first plies
+ * of each game is added to the book with the game's result, on top of
+ * whatever the book already holds, so running it again keeps refining the
+ * same file.
+ *
+ * The random moves at the start of each game are what try out new lines;
+ * the rest are the engine's own choices.
+ *
+ * Run with "java net.thenumenorean.othelloai.book.BookBuilder <book> <games>
+ * [book plies] [random moves] [max depth] [millis per move] [evaluator]".
+ *
+ * @author Francesco
+ *
+ */
+public class BookBuilder extends SelfPlay {
+
+	/**
+	 * Moves from the start of each game to add to the book
+	 */
+	public static final int DEFAULT_PLIES = 20;
+
+	private final int plies;
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: BookBuilder <book> <games> [book plies] [random moves] [max depth] "
+					+ "[millis per move] [evaluator]");
+			return;
+		}
+
+		File file = new File(args[0]);
+		int games = Integer.parseInt(args[1]);
+		int plies = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PLIES;
+		int randomMoves = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_RANDOM_MOVES;
+		int maxDepth = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MAX_DEPTH;
+		long moveMillis = args.length > 5 ? Long.parseLong(args[5]) : DEFAULT_MOVE_MILLIS;
+		Evaluator evaluator = OthelloAI.parseEvaluator(args.length > 6 ? args[6] : "super");
+
+		BookBuilder builder = new BookBuilder(evaluator, plies, randomMoves, maxDepth, moveMillis);
+		if (file.isFile())
+			builder.add(OpeningBook.load(file));
+		builder.play(games, Runtime.getRuntime().availableProcessors());
+		builder.save(file);
+	}
+
+	/**
+	 * @param evaluator
+	 *            How both sides value positions
+	 * @param plies
+	 *            Moves from the start of each game to add to the book
+	 * @param randomMoves
+	 *            Moves to play at random at the start of each game
+	 * @param maxDepth
+	 *            Most plies to search each move
+	 * @param moveMillis
+	 *            Most time to search each move
+	 */
+	public BookBuilder(Evaluator evaluator, int plies, int randomMoves, int maxDepth, long moveMillis) {
+		super(evaluator, randomMoves, maxDepth, moveMillis);
+		this.plies = plies;
+	}
+
+	/**
+	 * Adds the contents of an existing book.
+	 *
+	 * @param book
+	 *            The book to add
+	 */
+	public synchronized void add(OpeningBook book) {
+		for (int i = 0; i < book.size(); i++)
+			entries.add(new Entry(book.getKey(i), book.getSquare(i), book.getGames(i), book.getTotal(i)));
+	}
+
+	@Override
+	protected synchronized void gamePlayed(long[] players, long[] opponents, int[] squares, int[] diffs, int count) {
+		for (int i = 0; i < Math.min(count, plies); i++) {
+			int symmetry = OthelloBoard.canonicalSymmetry(players[i], opponents[i]);
+			long key = OthelloBoard.canonicalKey(players[i], opponents[i], symmetry);
+			entries.add(new Entry(key, BoardSymmetry.transformSquare(squares[i], symmetry), 1, diffs[i]));
+		}
+	}
+
+	/**
+	 * Writes everything added so far as a book, replacing the file once it
+	 * is complete so engines never map half a book.
+	 *
+	 * @param file
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public synchronized void save(File file) throws IOException {
+		// Combine the entries for each move of each position.
+		Collections.sort(entries);
+		List<Entry> merged = new ArrayList<Entry>();
+		for (Entry e : entries) {
+			Entry last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && last.compareTo(e) == 0) {
+				last.games += e.games;
+				last.total += e.total;
+			} else {
+				merged.add(new Entry(e.key, e.square, e.games, e.total));
+			}
+		}
+		entries.clear();
+		entries.addAll(merged);
+
+		ByteBuffer buf = ByteBuffer.allocate(OpeningBook.HEADER_BYTES + merged.size() * OpeningBook.BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(OpeningBook.MAGIC).putInt(OpeningBook.VERSION).putInt(merged.size()).putInt(OpeningBook.BYTES);
+		for (Entry e : merged)
+			buf.putLong(e.key).putInt(e.games).putInt(e.total).put((byte) e.square);
+		buf.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Could not replace " + file);
+
+		System.err.println("Wrote " + merged.size() + " moves to " + file);
+	}
+
+	/**
+	 * One move from one position, with its results so far.
+	 *
+	 * @author Francesco
+	 *
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		final long key;
+		final int square;
+		int games;
+		int total;
+
+		Entry(long key, int square, int games, int total) {
+			this.key = key;
+			this.square = square;
+			this.games = games;
+			this.total = total;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			// The same order as OpeningBook searches in.
+			if (key != o.key)
+				return key < o.key ? -1 : 1;
+			return square - o.square;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package net.thenumenorean.othelloai.book;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.thenumenorean.othelloai.board.BoardSymmetry;
+import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+
+/**
+ * Moves to play in the opening, with how well they did in past games.
+ *
+ * Positions are looked up by their canonical key, so one entry covers every
+ * reflection of a position and both colors. Moves are stored in that
+ * orientation and turned back on lookup.
+ *
+ * Book files are little endian: the int MAGIC, the int VERSION, the number
+ * of records and the size of a record as ints, then the records sorted by
+ * key and then move. Each record is the key as a long, the number of games
+ * the move was played in and the sum of the final disc differentials of
+ * those games for the side playing it as ints, then the square played as a
+ * byte. Files are memory mapped and searched in place, so a lookup only
+ * touches the pages along its binary search.
+ *
+ * @author Francesco
+ *
+ */
+public class OpeningBook {
+
+	public static final int MAGIC = 0x4b4f4f42; // "BOOK"
+	public static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+
+	/**
+	 * Size of each record
+	 */
+	public static final int BYTES = 17;
+
+	/**
+	 * Fewest games a move must have been played in to be chosen
+	 */
+	public static final int MIN_GAMES = 3;
+
+	private final ByteBuffer records;
+	private final int count;
+
+	private OpeningBook(ByteBuffer records, int count) {
+		this.records = records;
+		this.count = count;
+	}
+
+	/**
+	 * Maps a book file into memory.
+	 *
+	 * @param file
+	 *            The file to map
+	 * @return The book
+	 * @throws IOException
+	 *             If the file can't be read or is not a book
+	 */
+	public static OpeningBook load(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < HEADER_BYTES)
+				throw new IOException(file + " is not a book");
+
+			// The mapping stays valid after the file is closed.
+			MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(12) != BYTES)
+				throw new IOException(file + " is not a book");
+
+			int count = map.getInt(8);
+			if (in.length() != HEADER_BYTES + (long) count * BYTES)
+				throw new IOException(file + " should have " + count + " records");
+
+			map.position(HEADER_BYTES);
+			return new OpeningBook(map.slice().order(ByteOrder.LITTLE_ENDIAN), count);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the move with the best average result from a position.
+	 *
+	 * @param board
+	 *            The position, with the side to move to play
+	 * @return The move, or null if the position is not in the book or none of
+	 *         its moves have been played in enough games
+	 */
+	public Move lookup(OthelloBoard board) {
+		OthelloSide side = board.getToMove();
+		long player = board.getBits(side);
+		long opponent = board.getBits(side.opposite());
+
+		int symmetry = OthelloBoard.canonicalSymmetry(player, opponent);
+		long key = OthelloBoard.canonicalKey(player, opponent, symmetry);
+
+		int best = -1;
+		for (int i = first(key); i < count && getKey(i) == key; i++) {
+			if (getGames(i) < MIN_GAMES)
+				continue;
+			// Compare average results without dividing.
+			if (best < 0 || (long) getTotal(i) * getGames(best) > (long) getTotal(best) * getGames(i))
+				best = i;
+		}
+		if (best < 0)
+			return null;
+
+		int square = BoardSymmetry.untransformSquare(getSquare(best), symmetry);
+		if ((board.getMoveMask(side) & (1L << square)) == 0) {
+			// Another position with the same key.
+			return null;
+		}
+		return Move.fromSquare(square);
+	}
+
+	/**
+	 * @return the number of records in the book
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Finds the first record with a key no less than the given one.
+	 */
+	private int first(long key) {
+		int low = 0, high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getKey(mid) < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	long getKey(int record) {
+		return records.getLong(record * BYTES);
+	}
+
+	int getGames(int record) {
+		return records.getInt(record * BYTES + 8);
+	}
+
+	int getTotal(int record) {
+		return records.getInt(record * BYTES + 12);
+	}
+
+	int getSquare(int record) {
+		return records.get(record * BYTES + 16);
+	}
+}
@@ -31,4 +31,13 @@ public interface CommLink {
 	 */
 	public Move receiveMove();
 
+	/**
+	 * Get the time left on our clock, as reported along with the last
+	 * received move.
+	 * 
+	 * @return Milliseconds left, or a negative number if the game is not
+	 *         timed or nothing has been received yet
+	 */
+	public long getMillisLeft();
+
 }
@@ -17,9 +17,11 @@ import net.thenumenorean.othelloai.board.Move;
 public class StdCommLink implements CommLink {
 
 	private Scanner scan;
+	private long millisLeft;
 
 	public StdCommLink() {
 		scan = new Scanner(System.in);
+		millisLeft = -1;
 	}
 
 	/*
@@ -50,6 +52,7 @@ public class StdCommLink implements CommLink {
 		try {
 			x = Integer.parseInt(in[0]);
 			y = Integer.parseInt(in[1]);
+			millisLeft = Long.parseLong(in[2]);
 		} catch (NumberFormatException e) {
 			throw new InternalError("Input move not using integers");
 		}
@@ -57,6 +60,16 @@ public class StdCommLink implements CommLink {
 		return new Move(x, y);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see net.thenumenorean.othelloai.CommLink#getMillisLeft()
+	 */
+	@Override
+	public long getMillisLeft() {
+		return millisLeft;
+	}
+
 	@Override
 	public void sendInitDone() {
 		System.out.println();
@@ -0,0 +1,37 @@
+package net.thenumenorean.othelloai.eval;
+
+/**
+ * Values positions for the searches. Implementations must be safe to use from
+ * many threads at once.
+ * 
+ * @author Francesco
+ *
+ */
+public interface Evaluator {
+
+	/**
+	 * Values a board for one side. Higher is better for that side.
+	 * 
+	 * @param player
+	 *            Bitboard of the side to value the board for
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @return The value of the board
+	 */
+	int evaluate(long player, long opponent);
+
+	/**
+	 * Gets how much a move changes evaluate for the side making it.
+	 * 
+	 * @param player
+	 *            Bitboard of the side moving, before the move
+	 * @param opponent
+	 *            Bitboard of the other side, before the move
+	 * @param square
+	 *            Square played, x + 8 * y
+	 * @param flips
+	 *            Bitboard of the pieces the move flips
+	 * @return The change in value
+	 */
+	int evaluateMove(long player, long opponent, int square, long flips);
+}
@@ -0,0 +1,428 @@
+package net.thenumenorean.othelloai.eval;
+
+import static net.thenumenorean.othelloai.board.BoardSymmetry.flipVertical;
+import static net.thenumenorean.othelloai.board.BoardSymmetry.mirrorHorizontal;
+import static net.thenumenorean.othelloai.board.BoardSymmetry.transpose;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import net.thenumenorean.othelloai.board.PositionValue;
+
+/**
+ * Values positions by looking up the contents of groups of squares in tables
+ * of weights. Each group, or pattern, is read as a base 3 number with a digit
+ * of 0 for an empty square, 1 for the player and 2 for the opponent, and all
+ * the symmetric copies of a pattern share one table.
+ *
+ * The patterns are the edges and the three lines parallel to each, the
+ * diagonals of length 4 to 8, the 3x3 squares in the corners and the 2x5
+ * rectangles along the edges from each corner. There is a separate set of
+ * tables for each phase of the game, chosen by the number of pieces on the
+ * board, and each phase has a constant as well.
+ *
+ * Weights are fixed point, with SCALE steps per unit of value, so small
+ * weights keep their precision in a short.
+ *
+ * Weight files are little endian: the int MAGIC, the int VERSION, the number
+ * of phases and the number of weights per phase as ints, then every weight
+ * as a short, phase by phase. They are memory mapped rather than read, so
+ * loading takes no time however big the tables are, every thread reads the
+ * same pages, and engines on one machine share them through the page cache.
+ *
+ * @author Francesco
+ *
+ */
+public class PatternEvaluator implements Evaluator {
+
+	public static final int MAGIC = 0x5754484f; // "OHTW"
+	public static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	/**
+	 * Steps per unit of value in the weights
+	 */
+	public static final int SCALE = 16;
+
+	/**
+	 * Number of game phases with their own weights
+	 */
+	public static final int PHASES = 12;
+
+	// Kinds of pattern, each with its own table
+	public static final int EDGE = 0;
+	public static final int HV2 = 1;
+	public static final int HV3 = 2;
+	public static final int HV4 = 3;
+	public static final int D8 = 4;
+	public static final int D7 = 5;
+	public static final int D6 = 6;
+	public static final int D5 = 7;
+	public static final int D4 = 8;
+	public static final int CORNER_3X3 = 9;
+	public static final int CORNER_2X5 = 10;
+	public static final int KINDS = 11;
+
+	private static final int[] SQUARES = { 8, 8, 8, 8, 8, 7, 6, 5, 4, 9, 10 };
+
+	/**
+	 * Start of each kind's table within a phase
+	 */
+	private static final int[] OFFSETS = new int[KINDS];
+
+	/**
+	 * Index of the constant within a phase
+	 */
+	public static final int BIAS;
+
+	/**
+	 * Number of weights in each phase
+	 */
+	public static final int PHASE_SIZE;
+
+	/**
+	 * Number of table entries used to value a position, one per pattern
+	 * instance plus the constant
+	 */
+	public static final int INSTANCES = 47;
+
+	// Base 3 value of each pattern of up to 10 bits, read as a binary number
+	private static final int[] BINARY_TO_TERNARY = new int[1 << 10];
+
+	// The squares (x, x + 8 - length) of each diagonal, from D8 to D4
+	private static final long[] DIAGONALS = new long[5];
+
+	static {
+		int offset = 0;
+		for (int k = 0; k < KINDS; k++) {
+			OFFSETS[k] = offset;
+			offset += pow3(SQUARES[k]);
+		}
+		BIAS = offset;
+		PHASE_SIZE = offset + 1;
+
+		for (int b = 0; b < BINARY_TO_TERNARY.length; b++) {
+			int t = 0;
+			for (int i = 9; i >= 0; i--)
+				t = t * 3 + (b >>> i & 1);
+			BINARY_TO_TERNARY[b] = t;
+		}
+
+		for (int d = 0; d < DIAGONALS.length; d++)
+			for (int x = 0; x + d < 8; x++)
+				DIAGONALS[d] |= 1L << (x + 8 * (x + d));
+	}
+
+	// Only read with absolute gets, so it is safe to share between threads
+	private final ShortBuffer weights;
+
+	// Buffers for the table entries of a position, one per thread
+	private final ThreadLocal<int[]> buffers = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[INSTANCES];
+		}
+	};
+
+	/**
+	 * Creates an evaluator with the given weights.
+	 *
+	 * @param weights
+	 *            PHASES * PHASE_SIZE weights, used without copying
+	 */
+	public PatternEvaluator(short[] weights) {
+		this(ShortBuffer.wrap(weights));
+	}
+
+	/**
+	 * Creates an evaluator reading its weights from a buffer.
+	 *
+	 * @param weights
+	 *            PHASES * PHASE_SIZE weights, from position 0, used without
+	 *            copying
+	 */
+	public PatternEvaluator(ShortBuffer weights) {
+		if (weights.capacity() != PHASES * PHASE_SIZE)
+			throw new IllegalArgumentException("Expected " + PHASES * PHASE_SIZE + " weights, got " + weights.capacity());
+		this.weights = weights;
+	}
+
+	/**
+	 * Creates an evaluator that values positions like the given PositionValue,
+	 * to start from when there are no trained weights. Each square's value is
+	 * shared out between the patterns that cover it.
+	 *
+	 * @param pv
+	 *            The square values to copy
+	 * @return The new evaluator
+	 */
+	public static PatternEvaluator seeded(PositionValue pv) {
+		int[] coverage = new int[64];
+		// Square of each digit of the first instance of each kind
+		int[][] digitSquares = new int[KINDS][10];
+		int[] kinds = instanceKinds();
+
+		int[] empty = new int[INSTANCES];
+		indices(0, 0, empty);
+		int[] single = new int[INSTANCES];
+		for (int sq = 0; sq < 64; sq++) {
+			indices(1L << sq, 0, single);
+			for (int i = 0; i < INSTANCES - 1; i++) {
+				int code = single[i] - empty[i];
+				if (code == 0)
+					continue;
+
+				coverage[sq]++;
+				// Only the first instance of a kind is needed, as the
+				// PositionValues are symmetric.
+				if (i == 0 || kinds[i - 1] != kinds[i])
+					digitSquares[kinds[i]][log3(code)] = sq;
+			}
+		}
+
+		short[] weights = new short[PHASES * PHASE_SIZE];
+		for (int k = 0; k < KINDS; k++) {
+			for (int code = 0; code < pow3(SQUARES[k]); code++) {
+				double value = 0;
+				int c = code;
+				for (int digit = 0; digit < SQUARES[k]; digit++, c /= 3) {
+					int sq = digitSquares[k][digit];
+					double share = (double) pv.getWeight(sq) / coverage[sq];
+					if (c % 3 == 1)
+						value += share;
+					else if (c % 3 == 2)
+						value -= share;
+				}
+				for (int phase = 0; phase < PHASES; phase++)
+					weights[phase * PHASE_SIZE + OFFSETS[k] + code] = (short) Math.round(value * SCALE);
+			}
+		}
+		return new PatternEvaluator(weights);
+	}
+
+	/**
+	 * Maps a file written by save into memory, read only.
+	 *
+	 * @param file
+	 *            The weight file
+	 * @return The new evaluator
+	 * @throws IOException
+	 *             If the file can't be read or is not a weight file
+	 */
+	public static PatternEvaluator load(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long size = PHASES * PHASE_SIZE * 2L + HEADER_BYTES;
+			if (in.length() != size)
+				throw new IOException(file + " should be " + size + " bytes, not " + in.length());
+
+			// The mapping stays valid after the file is closed.
+			MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+				throw new IOException(file + " is not a weight file");
+			if (map.getInt(8) != PHASES || map.getInt(12) != PHASE_SIZE)
+				throw new IOException(file + " has weights for different patterns");
+
+			map.position(HEADER_BYTES);
+			return new PatternEvaluator(map.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the weights to a file, in the format load reads.
+	 *
+	 * @param file
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void save(File file) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + weights.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC).putInt(VERSION).putInt(PHASES).putInt(PHASE_SIZE);
+		buf.asShortBuffer().put(weights.duplicate());
+		buf.clear();
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the weight at the given index, as filled in by indices
+	 */
+	public int getWeight(int index) {
+		return weights.get(index);
+	}
+
+	@Override
+	public int evaluate(long player, long opponent) {
+		int[] index = buffers.get();
+		indices(player, opponent, index);
+
+		int value = 0;
+		for (int i = 0; i < INSTANCES; i++)
+			value += weights.get(index[i]);
+		return value;
+	}
+
+	@Override
+	public int evaluateMove(long player, long opponent, int square, long flips) {
+		return evaluate(player | flips | 1L << square, opponent & ~flips) - evaluate(player, opponent);
+	}
+
+	/**
+	 * Gets the phase of the game a position is in.
+	 *
+	 * @param player
+	 *            Bitboard of one side
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @return The phase, from 0 to PHASES - 1
+	 */
+	public static int phase(long player, long opponent) {
+		int discs = Long.bitCount(player | opponent);
+		return Math.max(0, Math.min(PHASES - 1, (discs - 4) * PHASES / 61));
+	}
+
+	/**
+	 * Finds the table entries that value a position. The value is the sum of
+	 * the weights at these indices.
+	 *
+	 * @param p
+	 *            Bitboard of the side to value the board for
+	 * @param o
+	 *            Bitboard of the other side
+	 * @param out
+	 *            Filled with INSTANCES indices into the weights
+	 */
+	public static void indices(long p, long o, int[] out) {
+		int base = phase(p, o) * PHASE_SIZE;
+		int n = 0;
+
+		// Reflections of the board, so every copy of a pattern can be read
+		// from the same squares.
+		long tp = transpose(p), to = transpose(o);
+		long hp = mirrorHorizontal(p), ho = mirrorHorizontal(o);
+		long vp = flipVertical(p), vo = flipVertical(o);
+		long hvp = flipVertical(hp), hvo = flipVertical(ho);
+		long thp = transpose(hp), tho = transpose(ho);
+
+		// Rows and columns, from the edges in.
+		for (int r = 0; r < 4; r++) {
+			int offset = base + OFFSETS[EDGE + r];
+			out[n++] = offset + code(row(p, r), row(o, r));
+			out[n++] = offset + code(row(p, 7 - r), row(o, 7 - r));
+			out[n++] = offset + code(row(tp, r), row(to, r));
+			out[n++] = offset + code(row(tp, 7 - r), row(to, 7 - r));
+		}
+
+		// Diagonals. The two longest are their own transposes.
+		out[n++] = base + OFFSETS[D8] + code(diagonal(p, 0), diagonal(o, 0));
+		out[n++] = base + OFFSETS[D8] + code(diagonal(hp, 0), diagonal(ho, 0));
+		for (int d = 1; d < DIAGONALS.length; d++) {
+			int offset = base + OFFSETS[D8 + d];
+			out[n++] = offset + code(diagonal(p, d), diagonal(o, d));
+			out[n++] = offset + code(diagonal(tp, d), diagonal(to, d));
+			out[n++] = offset + code(diagonal(hp, d), diagonal(ho, d));
+			out[n++] = offset + code(diagonal(thp, d), diagonal(tho, d));
+		}
+
+		// Corners
+		int offset = base + OFFSETS[CORNER_3X3];
+		out[n++] = offset + code(corner3x3(p), corner3x3(o));
+		out[n++] = offset + code(corner3x3(hp), corner3x3(ho));
+		out[n++] = offset + code(corner3x3(vp), corner3x3(vo));
+		out[n++] = offset + code(corner3x3(hvp), corner3x3(hvo));
+
+		long tvp = transpose(vp), tvo = transpose(vo);
+		long thvp = transpose(hvp), thvo = transpose(hvo);
+		offset = base + OFFSETS[CORNER_2X5];
+		out[n++] = offset + code(corner2x5(p), corner2x5(o));
+		out[n++] = offset + code(corner2x5(hp), corner2x5(ho));
+		out[n++] = offset + code(corner2x5(vp), corner2x5(vo));
+		out[n++] = offset + code(corner2x5(hvp), corner2x5(hvo));
+		out[n++] = offset + code(corner2x5(tp), corner2x5(to));
+		out[n++] = offset + code(corner2x5(thp), corner2x5(tho));
+		out[n++] = offset + code(corner2x5(tvp), corner2x5(tvo));
+		out[n++] = offset + code(corner2x5(thvp), corner2x5(thvo));
+
+		out[n] = base + BIAS;
+	}
+
+	/**
+	 * @return the kind of each pattern instance, in the order indices lists
+	 *         them, not counting the constant
+	 */
+	private static int[] instanceKinds() {
+		int[] kinds = new int[INSTANCES - 1];
+		int n = 0;
+		for (int k = EDGE; k <= HV4; k++)
+			for (int i = 0; i < 4; i++)
+				kinds[n++] = k;
+		kinds[n++] = D8;
+		kinds[n++] = D8;
+		for (int k = D7; k <= D4; k++)
+			for (int i = 0; i < 4; i++)
+				kinds[n++] = k;
+		for (int i = 0; i < 4; i++)
+			kinds[n++] = CORNER_3X3;
+		for (int i = 0; i < 8; i++)
+			kinds[n++] = CORNER_2X5;
+		return kinds;
+	}
+
+	private static int code(int playerBits, int opponentBits) {
+		return BINARY_TO_TERNARY[playerBits] + 2 * BINARY_TO_TERNARY[opponentBits];
+	}
+
+	private static int row(long b, int r) {
+		return (int) (b >>> 8 * r) & 0xff;
+	}
+
+	/**
+	 * Gathers a diagonal into one byte. Its squares are all in different
+	 * columns, so the multiply adds the rows together without carries.
+	 */
+	private static int diagonal(long b, int d) {
+		return (int) ((b & DIAGONALS[d]) * 0x0101010101010101L >>> 56);
+	}
+
+	private static int corner3x3(long b) {
+		return (int) (b & 0x7 | b >>> 5 & 0x38 | b >>> 10 & 0x1c0);
+	}
+
+	private static int corner2x5(long b) {
+		return (int) (b & 0x1f | b >>> 3 & 0x3e0);
+	}
+
+	private static int pow3(int n) {
+		int p = 1;
+		for (int i = 0; i < n; i++)
+			p *= 3;
+		return p;
+	}
+
+	private static int log3(int n) {
+		int l = 0;
+		while (n >= 3) {
+			n /= 3;
+			l++;
+		}
+		return l;
+	}
+}
@@ -0,0 +1,486 @@
+package net.thenumenorean.othelloai.search;
+
+import java.util.Arrays;
+
+import net.thenumenorean.othelloai.board.BoardSymmetry;
+import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+import net.thenumenorean.othelloai.eval.Evaluator;
+
+/**
+ * Depth first negamax search with alpha-beta pruning and iterative
+ * deepening. The first move at each node is searched with the full window
+ * and the rest with a null window, only searched again in full if they turn
+ * out better (principal variation search). Each iteration after the first
+ * starts with a window around the previous iteration's score, widened if
+ * the score falls outside it (aspiration windows).
+ * 
+ * The whole search runs on one board using make/undo moves, and
+ * results are shared through a transposition table. Moves are tried in the
+ * order given by a MoveOrdering, after the transposition table's move, and
+ * ordered fastest first where there is enough depth left for that to pay.
+ * 
+ * A search object holds the state of one running search, so each thread needs
+ * its own. The transposition table can be shared.
+ * 
+ * Searches from a symmetric position, such as the start of the game, key the
+ * table by canonical keys so that reflections of a position share an entry.
+ * Any search can reach reflections of a position by different lines, but
+ * from a symmetric root every position has a reflection that is just as
+ * likely, so that is where sharing entries pays for working out canonical
+ * keys at every node. Elsewhere the cheaper Zobrist key is used, and the
+ * few reflections reached are searched again.
+ * 
+ * @author Francesco
+ *
+ */
+public class AlphaBetaSearch {
+
+	/**
+	 * Larger than any score
+	 */
+	public static final int INFINITY = 1 << 30;
+
+	/**
+	 * Score of a won game, before adding the disc differential. Any score
+	 * larger than this in magnitude is a proven result.
+	 */
+	public static final int WIN = 1 << 24;
+
+	// How many nodes to search between checks of the clock
+	private static final int TIME_CHECK_INTERVAL = 4096;
+
+	/**
+	 * Distance either side of the previous iteration's score to search
+	 * within first
+	 */
+	public static final int ASPIRATION_WINDOW = 32;
+
+	/**
+	 * Default fewest plies left to search for moves to be ordered fastest
+	 * first
+	 */
+	public static final int FASTEST_FIRST_DEPTH = 4;
+
+	private final TranspositionTable table;
+	private final Evaluator evaluator;
+	private final MoveOrdering ordering = new MoveOrdering();
+
+	private int maxDepth = Integer.MAX_VALUE;
+	private int fastestFirstDepth = FASTEST_FIRST_DEPTH;
+	private boolean verbose = true;
+
+	private OthelloBoard board;
+	private long deadline;
+	private boolean stopped;
+	private long nodes;
+	// Transposition table probes by this search that found their position,
+	// that found an empty slot, and that found another position
+	private long tableHits;
+	private long tableMisses;
+	private long tableCollisions;
+	private boolean canonical;
+	// Plies from the root to the board being searched
+	private int ply;
+
+	// Best line found below each ply, from that ply to its length
+	private final int[][] pv = new int[MoveOrdering.MAX_PLY + 1][MoveOrdering.MAX_PLY + 1];
+	private final int[] pvLength = new int[MoveOrdering.MAX_PLY + 1];
+	// Best move of the last root search
+	private int rootBest;
+
+	// Results of the last completed iteration
+	private int[] principalVariation = new int[0];
+	private int score;
+
+	/**
+	 * Creates a search.
+	 * 
+	 * @param table
+	 *            Transposition table to use, possibly shared with other
+	 *            searches
+	 * @param evaluator
+	 *            How to value positions at the end of the search
+	 */
+	public AlphaBetaSearch(TranspositionTable table, Evaluator evaluator) {
+		this.table = table;
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * Limits how deep findBestMove searches, whatever time it has left.
+	 * 
+	 * @param depth
+	 *            Most plies to search
+	 */
+	public void setMaxDepth(int depth) {
+		maxDepth = depth;
+	}
+
+	/**
+	 * Sets how deep the search below a node must go for its moves to be
+	 * ordered fastest first, rather than by killers and history.
+	 * 
+	 * @param depth
+	 *            Fewest plies left to search
+	 */
+	public void setFastestFirstDepth(int depth) {
+		fastestFirstDepth = depth;
+	}
+
+	/**
+	 * Sets whether each iteration's result is logged.
+	 * 
+	 * @param verbose
+	 *            true to log to System.err
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Finds the best move for the side to move on the given board, searching
+	 * one ply deeper at a time until time runs out or the result of the game
+	 * is proven. No new iteration is started after half the time limit, since
+	 * it would be unlikely to finish. A single legal move is returned without
+	 * searching.
+	 * 
+	 * @param position
+	 *            Board to search from. It is not modified.
+	 * @param timeLimit
+	 *            Milliseconds the search may take
+	 * @return The best move found from the deepest completed search, or
+	 *         Move.NO_MOVE if there is no legal move.
+	 */
+	public Move findBestMove(OthelloBoard position, long timeLimit) {
+		board = position.copy();
+		long start = System.currentTimeMillis();
+		deadline = start + timeLimit;
+		stopped = false;
+		nodes = 0;
+		tableHits = 0;
+		tableMisses = 0;
+		tableCollisions = 0;
+
+		OthelloSide side = board.getToMove();
+		long moves = board.getMoveMask(side);
+		int bestMove = Long.numberOfTrailingZeros(moves);
+		principalVariation = moves == 0 ? new int[0] : new int[] { bestMove };
+		score = 0;
+		if (moves == 0)
+			return Move.NO_MOVE;
+		if (Long.bitCount(moves) == 1)
+			return Move.fromSquare(bestMove);
+
+		table.newSearch();
+		ordering.newSearch();
+		canonical = board.isSymmetric();
+		ply = 0;
+
+		int empties = 64 - Long.bitCount(board.getBits(OthelloSide.BLACK) | board.getBits(OthelloSide.WHITE));
+
+		for (int depth = 1; depth <= Math.min(empties, maxDepth); depth++) {
+			int alpha = depth == 1 ? -INFINITY : score - ASPIRATION_WINDOW;
+			int beta = depth == 1 ? INFINITY : score + ASPIRATION_WINDOW;
+
+			// Search the previous iteration's best move first, and widen the
+			// window on whichever side the score falls outside it.
+			int first = bestMove;
+			int result;
+			while (true) {
+				result = searchRoot(moves, side, depth, alpha, beta, first);
+				if (stopped)
+					break;
+				if (result <= alpha && alpha > -INFINITY) {
+					alpha = -INFINITY;
+				} else if (result >= beta && beta < INFINITY) {
+					beta = INFINITY;
+					first = rootBest;
+				} else {
+					break;
+				}
+			}
+
+			if (stopped)
+				break;
+
+			bestMove = rootBest;
+			score = result;
+			principalVariation = Arrays.copyOf(pv[0], pvLength[0]);
+			storeResult(board.getBits(side), board.getBits(side.opposite()), depth, TranspositionTable.EXACT, score,
+					bestMove);
+			if (verbose)
+				System.err.println("Depth " + depth + ": " + Move.fromSquare(bestMove) + "=" + score + " (" + nodes
+						+ " nodes) " + Arrays.toString(getPrincipalVariation()));
+
+			if (Math.abs(score) > WIN || System.currentTimeMillis() - start > timeLimit / 2)
+				break;
+		}
+
+		return Move.fromSquare(bestMove);
+	}
+
+	/**
+	 * Searches every move from the root, leaving the best in rootBest and
+	 * its line in pv[0].
+	 * 
+	 * @param first
+	 *            Move to search first, with the full window
+	 * @return The best score, or a bound on it if outside the window
+	 */
+	private int searchRoot(long moves, OthelloSide side, int depth, int alpha, int beta, int first) {
+		pvLength[0] = 0;
+		int best = searchMove(first, side, depth, alpha, beta, true);
+		rootBest = first;
+		updatePv(first);
+		alpha = Math.max(alpha, best);
+
+		long rest = moves & ~(1L << first);
+		int[] order = ordering.order(rest, side, ply);
+		for (int i = 0, count = Long.bitCount(rest); i < count && alpha < beta; i++) {
+			int sq = order[i];
+			int score = searchMove(sq, side, depth, alpha, beta, false);
+			if (score > best) {
+				best = score;
+				rootBest = sq;
+				updatePv(sq);
+				alpha = Math.max(alpha, score);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Plays a move, searches the resulting position and takes the move back.
+	 * 
+	 * @param full
+	 *            Whether to search with the full window straight away, rather
+	 *            than first testing if the move beats alpha with a null window
+	 * @return The score of the move for the side playing it
+	 */
+	private int searchMove(int square, OthelloSide side, int depth, int alpha, int beta, boolean full) {
+		long flips = board.getFlips(square, side);
+		board.makeMove(square, flips, side);
+		ply++;
+		int score;
+		if (full) {
+			score = -negamax(depth - 1, -beta, -alpha, false);
+		} else {
+			score = -negamax(depth - 1, -alpha - 1, -alpha, false);
+			if (score > alpha && score < beta)
+				score = -negamax(depth - 1, -beta, -alpha, false);
+		}
+		ply--;
+		board.undoMove(square, flips, side);
+		return score;
+	}
+
+	/**
+	 * Makes the line at the current ply a move followed by the line found
+	 * below it.
+	 */
+	private void updatePv(int square) {
+		int end = pvLength[ply + 1];
+		pv[ply][ply] = square;
+		System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, end - (ply + 1));
+		pvLength[ply] = end;
+	}
+
+	/**
+	 * Searches the current board to the given depth.
+	 * 
+	 * @param depth
+	 *            Plies left to search. Passes do not count.
+	 * @param alpha
+	 *            Score the side to move is already guaranteed
+	 * @param beta
+	 *            Score the other side is already guaranteed
+	 * @param passed
+	 *            Whether the previous ply was a pass
+	 * @return The score of the position for the side to move
+	 */
+	private int negamax(int depth, int alpha, int beta, boolean passed) {
+		pvLength[ply] = ply;
+		if (++nodes % TIME_CHECK_INTERVAL == 0 && System.currentTimeMillis() >= deadline)
+			stopped = true;
+		if (stopped)
+			return 0;
+
+		OthelloSide side = board.getToMove();
+		long player = board.getBits(side);
+		long opponent = board.getBits(side.opposite());
+		long moves = OthelloBoard.getMoveMask(player, opponent);
+
+		if (moves == 0) {
+			if (passed)
+				return finalScore(player, opponent);
+
+			board.pass(side);
+			ply++;
+			int score = -negamax(depth, -beta, -alpha, true);
+			ply--;
+			board.pass(side.opposite());
+			updatePv(TranspositionTable.PASS);
+			return score;
+		}
+
+		if (depth == 0)
+			return evaluate(player, opponent);
+
+		int symmetry = canonical ? OthelloBoard.canonicalSymmetry(player, opponent) : 0;
+		long key = canonical ? OthelloBoard.canonicalKey(player, opponent, symmetry) : board.getHash();
+		long entry = table.probe(key);
+		int ttMove = TranspositionTable.NO_MOVE;
+		if (entry == 0) {
+			tableMisses++;
+		} else if (entry == TranspositionTable.COLLISION) {
+			tableCollisions++;
+			entry = 0;
+		} else {
+			tableHits++;
+		}
+		if (entry != 0) {
+			ttMove = TranspositionTable.move(entry);
+			if (ttMove < 64)
+				ttMove = BoardSymmetry.untransformSquare(ttMove, symmetry);
+			if (TranspositionTable.depth(entry) >= depth) {
+				int score = TranspositionTable.score(entry);
+				int bound = TranspositionTable.bound(entry);
+				if (bound == TranspositionTable.EXACT || (bound == TranspositionTable.LOWER_BOUND && score >= beta)
+						|| (bound == TranspositionTable.UPPER_BOUND && score <= alpha))
+					return score;
+			}
+		}
+
+		int alphaOriginal = alpha;
+		int best = -INFINITY;
+		int bestMove = TranspositionTable.NO_MOVE;
+
+		// The transposition table's move first, then the rest in order.
+		if (ttMove < 64 && (moves & (1L << ttMove)) != 0) {
+			best = searchMove(ttMove, side, depth, alpha, beta, true);
+			bestMove = ttMove;
+			updatePv(ttMove);
+			alpha = Math.max(alpha, best);
+			moves &= ~(1L << ttMove);
+		}
+
+		int[] order = depth >= fastestFirstDepth ? ordering.fastestFirst(player, opponent, moves, ply)
+				: ordering.order(moves, side, ply);
+		for (int i = 0, count = Long.bitCount(moves); i < count && alpha < beta; i++) {
+			int sq = order[i];
+			int score = searchMove(sq, side, depth, alpha, beta, best == -INFINITY);
+			if (score > best) {
+				best = score;
+				bestMove = sq;
+				updatePv(sq);
+				alpha = Math.max(alpha, score);
+			}
+		}
+
+		if (stopped)
+			return 0;
+
+		if (best >= beta)
+			ordering.cutoff(bestMove, side, ply, depth);
+
+		int bound = best <= alphaOriginal ? TranspositionTable.UPPER_BOUND
+				: best >= beta ? TranspositionTable.LOWER_BOUND : TranspositionTable.EXACT;
+		if (bestMove < 64)
+			bestMove = BoardSymmetry.transformSquare(bestMove, symmetry);
+		table.store(key, depth, bound, best, bestMove);
+
+		return best;
+	}
+
+	/**
+	 * Stores the result of searching the current board, under whichever key
+	 * this search uses.
+	 */
+	private void storeResult(long player, long opponent, int depth, int bound, int score, int move) {
+		if (!canonical) {
+			table.store(board.getHash(), depth, bound, score, move);
+			return;
+		}
+
+		int symmetry = OthelloBoard.canonicalSymmetry(player, opponent);
+		table.store(OthelloBoard.canonicalKey(player, opponent, symmetry), depth, bound, score,
+				BoardSymmetry.transformSquare(move, symmetry));
+	}
+
+	/**
+	 * Scores a finished game: a win or loss outweighs any heuristic score,
+	 * and the disc differential separates wins from each other.
+	 */
+	private static int finalScore(long player, long opponent) {
+		int diff = Long.bitCount(player) - Long.bitCount(opponent);
+		if (diff > 0)
+			return WIN + diff;
+		if (diff < 0)
+			return -WIN + diff;
+		return 0;
+	}
+
+	/**
+	 * Values a position for the player with the evaluator.
+	 */
+	private int evaluate(long player, long opponent) {
+		return evaluator.evaluate(player, opponent);
+	}
+
+	/**
+	 * Gets the line of play the last completed iteration expects, starting
+	 * with the best move. It may stop short of the search depth where a
+	 * result came from the transposition table.
+	 * 
+	 * @return The moves of the line, with passes as Move.NO_MOVE
+	 */
+	public Move[] getPrincipalVariation() {
+		Move[] line = new Move[principalVariation.length];
+		for (int i = 0; i < line.length; i++) {
+			int sq = principalVariation[i];
+			line[i] = sq == TranspositionTable.PASS ? Move.NO_MOVE : Move.fromSquare(sq);
+		}
+		return line;
+	}
+
+	/**
+	 * @return the score of the best move found by the last search, for the
+	 *         side to move
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * @return the number of transposition table probes by the last search
+	 *         that found their position
+	 */
+	public long getTableHits() {
+		return tableHits;
+	}
+
+	/**
+	 * @return the number of transposition table probes by the last search
+	 *         that found an empty slot
+	 */
+	public long getTableMisses() {
+		return tableMisses;
+	}
+
+	/**
+	 * @return the number of transposition table probes by the last search
+	 *         that found another position in their slot
+	 */
+	public long getTableCollisions() {
+		return tableCollisions;
+	}
+
+	/**
+	 * @return the number of positions visited by the last search
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+}
@@ -0,0 +1,358 @@
+package net.thenumenorean.othelloai.search;
+
+import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+
+/**
+ * Plays the end of the game perfectly by searching every line to the end and
+ * scoring the final disc differential.
+ * 
+ * With many empty squares left, moves are ordered fastest first by a
+ * MoveOrdering. Closer to the end, where that costs more than it saves,
+ * moves in quadrants with an odd number of empty squares are tried first,
+ * since the player who moves last in a region tends to win it. The last four
+ * empty squares are handled by unrolled routines that try each square
+ * directly instead of generating moves.
+ * 
+ * A solver object holds the state of one running solve, so each thread needs
+ * its own.
+ * 
+ * @author Francesco
+ *
+ */
+public class EndgameSolver {
+
+	// The four 4x4 quadrants of the board, for parity
+	private static final long[] QUADRANTS = { 0x000000000f0f0f0fL, 0x00000000f0f0f0f0L, 0x0f0f0f0f00000000L,
+			0xf0f0f0f000000000L };
+
+	// Worse than any disc differential
+	private static final int INFINITY = 65;
+
+	// How many nodes to search between checks of the clock
+	private static final int TIME_CHECK_INTERVAL = 4096;
+
+	/**
+	 * Default fewest empty squares at which moves are ordered fastest first
+	 */
+	public static final int FASTEST_FIRST_EMPTIES = 6;
+
+	private final MoveOrdering ordering = new MoveOrdering();
+	// Moves ordered by parity, for each number of empty squares
+	private final int[][] parityOrders = new int[65][64];
+	private int fastestFirstEmpties = FASTEST_FIRST_EMPTIES;
+
+	private boolean verbose = true;
+
+	private long deadline;
+	private boolean stopped;
+	private long nodes;
+	private int score;
+
+	/**
+	 * Sets whether each solve's result is logged.
+	 * 
+	 * @param verbose
+	 *            true to log to System.err
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Sets how many empty squares there must be for moves to be ordered
+	 * fastest first, rather than by parity.
+	 * 
+	 * @param empties
+	 *            Fewest empty squares, more than 4
+	 */
+	public void setFastestFirstEmpties(int empties) {
+		fastestFirstEmpties = empties;
+	}
+
+	/**
+	 * Finds the move with the best final disc differential for the side to
+	 * move on the given board.
+	 * 
+	 * @param position
+	 *            Board to solve. It is not modified.
+	 * @param timeLimit
+	 *            Milliseconds the solve may take
+	 * @return The best move, Move.NO_MOVE if there is no legal move, or null
+	 *         if the solve did not finish in time.
+	 */
+	public Move solve(OthelloBoard position, long timeLimit) {
+		deadline = System.currentTimeMillis() + timeLimit;
+		stopped = false;
+		nodes = 0;
+
+		OthelloSide side = position.getToMove();
+		long player = position.getBits(side);
+		long opponent = position.getBits(side.opposite());
+		long moves = OthelloBoard.getMoveMask(player, opponent);
+
+		if (moves == 0) {
+			score = -solve(opponent, player, -INFINITY, INFINITY, true);
+			return Move.NO_MOVE;
+		}
+
+		int[] order = orderMoves(player, opponent, moves, ~(player | opponent));
+		int alpha = -INFINITY;
+		int bestMove = -1;
+		for (int i = 0, count = Long.bitCount(moves); i < count; i++) {
+			int sq = order[i];
+			long flips = OthelloBoard.getFlips(player, opponent, sq);
+			int value = -solve(opponent ^ flips, player ^ flips ^ (1L << sq), -INFINITY, -alpha, false);
+			if (value > alpha) {
+				alpha = value;
+				bestMove = sq;
+			}
+		}
+
+		if (stopped)
+			return null;
+
+		score = alpha;
+		if (verbose)
+			System.err.println("Endgame: " + Move.fromSquare(bestMove) + "=" + score + " (" + nodes + " nodes)");
+		return Move.fromSquare(bestMove);
+	}
+
+	/**
+	 * Solves a position where player is to move.
+	 * 
+	 * @param passed
+	 *            Whether the previous ply was a pass
+	 * @return The final disc differential for player with best play
+	 */
+	private int solve(long player, long opponent, int alpha, int beta, boolean passed) {
+		long empties = ~(player | opponent);
+
+		switch (Long.bitCount(empties)) {
+		case 0:
+			return discDifference(player, opponent);
+		case 1:
+			return solve1(player, opponent, Long.numberOfTrailingZeros(empties));
+		case 2:
+			return solve2(player, opponent, alpha, beta, Long.numberOfTrailingZeros(empties),
+					63 - Long.numberOfLeadingZeros(empties), passed);
+		case 3:
+		case 4:
+			return solveSmall(player, opponent, alpha, beta, empties, passed);
+		}
+
+		if (++nodes % TIME_CHECK_INTERVAL == 0 && System.currentTimeMillis() >= deadline)
+			stopped = true;
+		if (stopped)
+			return 0;
+
+		long moves = OthelloBoard.getMoveMask(player, opponent);
+		if (moves == 0) {
+			if (passed)
+				return discDifference(player, opponent);
+			return -solve(opponent, player, -beta, -alpha, true);
+		}
+
+		int[] order = orderMoves(player, opponent, moves, empties);
+		int best = -INFINITY;
+		for (int i = 0, count = Long.bitCount(moves); i < count; i++) {
+			int sq = order[i];
+			long flips = OthelloBoard.getFlips(player, opponent, sq);
+			int value = -solve(opponent ^ flips, player ^ flips ^ (1L << sq), -beta, -alpha, false);
+			if (value > best) {
+				best = value;
+				if (value > alpha) {
+					alpha = value;
+					if (alpha >= beta)
+						return best;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Orders moves fastest first or by parity, depending on the number of
+	 * empty squares.
+	 * 
+	 * @return The squares of the moves, in the first Long.bitCount(moves)
+	 *         entries
+	 */
+	private int[] orderMoves(long player, long opponent, long moves, long empties) {
+		// Every level of the solve has its own number of empty squares, apart
+		// from passes, which order nothing, so it picks the array to use.
+		int n = Long.bitCount(empties);
+		if (n >= fastestFirstEmpties)
+			return ordering.fastestFirst(player, opponent, moves, n);
+
+		int[] order = parityOrders[n];
+		long odd = oddQuadrants(empties);
+		int i = 0;
+		for (long part = moves & odd; part != 0; part &= part - 1)
+			order[i++] = Long.numberOfTrailingZeros(part);
+		for (long part = moves & ~odd; part != 0; part &= part - 1)
+			order[i++] = Long.numberOfTrailingZeros(part);
+		return order;
+	}
+
+	/**
+	 * Splits the last 3 or 4 empty squares into separate arguments, odd
+	 * quadrants first, for solve3 and solve4.
+	 */
+	private int solveSmall(long player, long opponent, int alpha, int beta, long empties, boolean passed) {
+		long odd = oddQuadrants(empties);
+
+		// Pack the squares 6 bits each to avoid allocating an array.
+		int squares = 0;
+		int n = 0;
+		for (long b = empties & odd; b != 0; b &= b - 1)
+			squares |= Long.numberOfTrailingZeros(b) << (6 * n++);
+		for (long b = empties & ~odd; b != 0; b &= b - 1)
+			squares |= Long.numberOfTrailingZeros(b) << (6 * n++);
+
+		int s1 = squares & 63, s2 = (squares >>> 6) & 63, s3 = (squares >>> 12) & 63;
+		if (n == 3)
+			return solve3(player, opponent, alpha, beta, s1, s2, s3, passed);
+		return solve4(player, opponent, alpha, beta, s1, s2, s3, (squares >>> 18) & 63, passed);
+	}
+
+	private int solve4(long player, long opponent, int alpha, int beta, int s1, int s2, int s3, int s4,
+			boolean passed) {
+		nodes++;
+		int best = -INFINITY;
+		long flips;
+
+		if ((flips = OthelloBoard.getFlips(player, opponent, s1)) != 0) {
+			best = -solve3(opponent ^ flips, player ^ flips ^ (1L << s1), -beta, -alpha, s2, s3, s4, false);
+			if (best >= beta)
+				return best;
+			alpha = Math.max(alpha, best);
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s2)) != 0) {
+			best = Math.max(best,
+					-solve3(opponent ^ flips, player ^ flips ^ (1L << s2), -beta, -alpha, s1, s3, s4, false));
+			if (best >= beta)
+				return best;
+			alpha = Math.max(alpha, best);
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s3)) != 0) {
+			best = Math.max(best,
+					-solve3(opponent ^ flips, player ^ flips ^ (1L << s3), -beta, -alpha, s1, s2, s4, false));
+			if (best >= beta)
+				return best;
+			alpha = Math.max(alpha, best);
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s4)) != 0) {
+			best = Math.max(best,
+					-solve3(opponent ^ flips, player ^ flips ^ (1L << s4), -beta, -alpha, s1, s2, s3, false));
+		}
+
+		if (best == -INFINITY) {
+			if (passed)
+				return discDifference(player, opponent);
+			return -solve4(opponent, player, -beta, -alpha, s1, s2, s3, s4, true);
+		}
+		return best;
+	}
+
+	private int solve3(long player, long opponent, int alpha, int beta, int s1, int s2, int s3, boolean passed) {
+		nodes++;
+		int best = -INFINITY;
+		long flips;
+
+		if ((flips = OthelloBoard.getFlips(player, opponent, s1)) != 0) {
+			best = -solve2(opponent ^ flips, player ^ flips ^ (1L << s1), -beta, -alpha, s2, s3, false);
+			if (best >= beta)
+				return best;
+			alpha = Math.max(alpha, best);
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s2)) != 0) {
+			best = Math.max(best, -solve2(opponent ^ flips, player ^ flips ^ (1L << s2), -beta, -alpha, s1, s3, false));
+			if (best >= beta)
+				return best;
+			alpha = Math.max(alpha, best);
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s3)) != 0) {
+			best = Math.max(best, -solve2(opponent ^ flips, player ^ flips ^ (1L << s3), -beta, -alpha, s1, s2, false));
+		}
+
+		if (best == -INFINITY) {
+			if (passed)
+				return discDifference(player, opponent);
+			return -solve3(opponent, player, -beta, -alpha, s1, s2, s3, true);
+		}
+		return best;
+	}
+
+	private int solve2(long player, long opponent, int alpha, int beta, int s1, int s2, boolean passed) {
+		nodes++;
+		int best = -INFINITY;
+		long flips;
+
+		if ((flips = OthelloBoard.getFlips(player, opponent, s1)) != 0) {
+			best = -solve1(opponent ^ flips, player ^ flips ^ (1L << s1), s2);
+			if (best >= beta)
+				return best;
+		}
+		if ((flips = OthelloBoard.getFlips(player, opponent, s2)) != 0) {
+			best = Math.max(best, -solve1(opponent ^ flips, player ^ flips ^ (1L << s2), s1));
+		}
+
+		if (best == -INFINITY) {
+			if (passed)
+				return discDifference(player, opponent);
+			return -solve2(opponent, player, -beta, -alpha, s1, s2, true);
+		}
+		return best;
+	}
+
+	/**
+	 * Plays out the last empty square, by whichever side can play it.
+	 */
+	private int solve1(long player, long opponent, int square) {
+		nodes++;
+		long bit = 1L << square;
+		long flips = OthelloBoard.getFlips(player, opponent, square);
+		if (flips != 0)
+			return discDifference(player ^ flips ^ bit, opponent ^ flips);
+
+		flips = OthelloBoard.getFlips(opponent, player, square);
+		if (flips != 0)
+			return discDifference(player ^ flips, opponent ^ flips ^ bit);
+
+		return discDifference(player, opponent);
+	}
+
+	private static int discDifference(long player, long opponent) {
+		return Long.bitCount(player) - Long.bitCount(opponent);
+	}
+
+	/**
+	 * @return a mask of the quadrants holding an odd number of the given
+	 *         empty squares
+	 */
+	private static long oddQuadrants(long empties) {
+		long odd = 0;
+		for (long quadrant : QUADRANTS) {
+			if ((Long.bitCount(empties & quadrant) & 1) != 0)
+				odd |= quadrant;
+		}
+		return odd;
+	}
+
+	/**
+	 * @return the final disc differential for the side to move found by the
+	 *         last finished solve
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * @return the number of positions visited by the last solve
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+}
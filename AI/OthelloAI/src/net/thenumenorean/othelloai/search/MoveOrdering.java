@@ -0,0 +1,224 @@
+package net.thenumenorean.othelloai.search;
+
+import java.util.Arrays;
+
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+import net.thenumenorean.othelloai.board.PositionValue;
+
+/**
+ * Puts moves in the order a search should try them, so that the move that
+ * causes a cutoff usually comes first.
+ *
+ * Moves that caused a cutoff at the same ply elsewhere in the tree, the
+ * killers, come first. The rest are ordered by their history, the total
+ * depth of the cutoffs each square has caused for each side, with ties
+ * broken by a fixed value for each square that puts corners first and the
+ * squares diagonally next to them last. Searches try the transposition
+ * table's move before asking for an order at all.
+ *
+ * Deep in a search, where a better order saves the most, moves can instead
+ * be ordered fastest first: by how few moves they leave the opponent, and
+ * then by how few empty squares they leave next to the mover's pieces,
+ * which are where the opponent's later moves come from. This costs a move
+ * generation per move, so it only pays with enough depth left below.
+ *
+ * An ordering is only used by one search at a time, so each thread has its
+ * own.
+ *
+ * @author Francesco
+ *
+ */
+public class MoveOrdering {
+
+	/**
+	 * Deepest ply that can be ordered. Every ply plays a square or passes,
+	 * and there can't be two passes in a row.
+	 */
+	public static final int MAX_PLY = 128;
+
+	// Killers for each ply, most recent first
+	private static final int KILLERS = 2;
+
+	// Weights of the opponent's mobility and potential mobility when ordering
+	// fastest first
+	private static final int MOBILITY_WEIGHT = 8;
+	private static final int POTENTIAL_WEIGHT = 1;
+
+	// Score of a killer, above any history score
+	private static final int KILLER_SCORE = 1 << 30;
+
+	// History scores are halved once any reaches this
+	private static final int HISTORY_LIMIT = 1 << 24;
+
+	// Corners, which are never flipped back
+	private static final long CORNERS = 0x8100000000000081L;
+
+	// The squares diagonally next to the corners, which give them away
+	private static final long X_SQUARES = 0x0042000000004200L;
+
+	/**
+	 * Score of each square before there is any history, from the square
+	 * values of PositionValue.STANDARD
+	 */
+	private static final int[] HINTS = new int[64];
+
+	static {
+		for (int sq = 0; sq < 64; sq++) {
+			HINTS[sq] = PositionValue.STANDARD.getWeight(sq);
+			if ((CORNERS & (1L << sq)) != 0)
+				HINTS[sq] += 100;
+			if ((X_SQUARES & (1L << sq)) != 0)
+				HINTS[sq] -= 100;
+		}
+	}
+
+	private final int[][] history = new int[2][64];
+	private final int[][] killers = new int[MAX_PLY][KILLERS];
+
+	// The order of each ply's moves, and their scores while sorting
+	private final int[][] orders = new int[MAX_PLY][64];
+	private final int[] scores = new int[64];
+
+	public MoveOrdering() {
+		clearKillers();
+	}
+
+	/**
+	 * Prepares for a new search. Killers are forgotten, and history counts
+	 * for less than what the new search finds.
+	 */
+	public void newSearch() {
+		clearKillers();
+		ageHistory();
+	}
+
+	private void clearKillers() {
+		for (int[] k : killers)
+			Arrays.fill(k, TranspositionTable.NO_MOVE);
+	}
+
+	private void ageHistory() {
+		for (int[] h : history) {
+			for (int sq = 0; sq < 64; sq++)
+				h[sq] >>= 1;
+		}
+	}
+
+	/**
+	 * Orders moves, best first.
+	 *
+	 * @param moves
+	 *            Bitboard of the moves to order
+	 * @param side
+	 *            The side making them
+	 * @param ply
+	 *            Plies from the root of the search
+	 * @return The squares of the moves, in the first Long.bitCount(moves)
+	 *         entries. The array belongs to the ply, so it stays valid while
+	 *         deeper plies are ordered.
+	 */
+	public int[] order(long moves, OthelloSide side, int ply) {
+		int[] order = orders[ply];
+		int[] sideHistory = history[side.ordinal()];
+		int[] plyKillers = killers[ply];
+
+		int n = 0;
+		for (; moves != 0; moves &= moves - 1) {
+			int sq = Long.numberOfTrailingZeros(moves);
+			int score;
+			if (sq == plyKillers[0])
+				score = KILLER_SCORE + 1;
+			else if (sq == plyKillers[1])
+				score = KILLER_SCORE;
+			else
+				score = sideHistory[sq] + HINTS[sq];
+			insert(order, n++, sq, score);
+		}
+		return order;
+	}
+
+	/**
+	 * Orders moves fastest first, as described above.
+	 *
+	 * @param player
+	 *            Bitboard of the side making the moves
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @param moves
+	 *            Bitboard of the moves to order
+	 * @param ply
+	 *            Which of the arrays used by order to fill. Any number below
+	 *            MAX_PLY that differs from those of the plies above will do.
+	 * @return The squares of the moves, in the first Long.bitCount(moves)
+	 *         entries
+	 */
+	public int[] fastestFirst(long player, long opponent, long moves, int ply) {
+		int[] order = orders[ply];
+
+		int n = 0;
+		for (; moves != 0; moves &= moves - 1) {
+			int sq = Long.numberOfTrailingZeros(moves);
+			long flips = OthelloBoard.getFlips(player, opponent, sq);
+			long mine = player | flips | (1L << sq);
+			long theirs = opponent & ~flips;
+
+			int mobility = Long.bitCount(OthelloBoard.getMoveMask(theirs, mine));
+			int potential = Long.bitCount(neighbours(mine) & ~(mine | theirs));
+			insert(order, n++, sq, -(MOBILITY_WEIGHT * mobility + POTENTIAL_WEIGHT * potential));
+		}
+		return order;
+	}
+
+	/**
+	 * Adds a move to the first n of an order, keeping it sorted by score,
+	 * highest first. Insertion sort, since there are rarely more than a dozen
+	 * moves.
+	 */
+	private void insert(int[] order, int n, int square, int score) {
+		int i = n;
+		for (; i > 0 && scores[i - 1] < score; i--) {
+			scores[i] = scores[i - 1];
+			order[i] = order[i - 1];
+		}
+		scores[i] = score;
+		order[i] = square;
+	}
+
+	/**
+	 * @return a bitboard of the squares next to any of the given ones,
+	 *         including diagonally
+	 */
+	private static long neighbours(long b) {
+		long notLeft = 0xfefefefefefefefeL; // no pieces in column 0
+		long notRight = 0x7f7f7f7f7f7f7f7fL; // no pieces in column 7
+		long sides = ((b << 1) & notLeft) | ((b >>> 1) & notRight);
+		long row = b | sides;
+		return sides | (row << 8) | (row >>> 8);
+	}
+
+	/**
+	 * Records that a move caused a cutoff.
+	 *
+	 * @param square
+	 *            The move
+	 * @param side
+	 *            The side making it
+	 * @param ply
+	 *            Plies from the root of the search
+	 * @param depth
+	 *            Plies that were left to search below the move's position
+	 */
+	public void cutoff(int square, OthelloSide side, int ply, int depth) {
+		int[] plyKillers = killers[ply];
+		if (plyKillers[0] != square) {
+			plyKillers[1] = plyKillers[0];
+			plyKillers[0] = square;
+		}
+
+		int[] sideHistory = history[side.ordinal()];
+		sideHistory[square] += depth * depth;
+		if (sideHistory[square] >= HISTORY_LIMIT)
+			ageHistory();
+	}
+}
@@ -0,0 +1,53 @@
+package net.thenumenorean.othelloai.search;
+
+/**
+ * Decides how long to think about a move, given what is left on the game
+ * clock.
+ * 
+ * @author Francesco
+ *
+ */
+public class TimeManager {
+
+	/**
+	 * Time always kept back for communication and scheduling delays
+	 */
+	public static final long MIN_RESERVE = 500;
+
+	/**
+	 * Shortest time ever given to a move
+	 */
+	public static final long MIN_BUDGET = 10;
+
+	private final long untimedBudget;
+
+	/**
+	 * @param untimedBudget
+	 *            Milliseconds to spend on each move when the game has no time
+	 *            limit
+	 */
+	public TimeManager(long untimedBudget) {
+		this.untimedBudget = untimedBudget;
+	}
+
+	/**
+	 * Gets the time to spend on the next move. The clock left, less a
+	 * reserve, is split evenly between the moves we still have to make.
+	 * 
+	 * @param millisLeft
+	 *            Milliseconds left on our clock, or a negative number if the
+	 *            game is not timed
+	 * @param empties
+	 *            Number of empty squares on the board
+	 * @return Milliseconds to think for
+	 */
+	public long getBudget(long millisLeft, int empties) {
+		if (millisLeft < 0)
+			return untimedBudget;
+
+		long usable = millisLeft - Math.max(MIN_RESERVE, millisLeft / 20);
+		int movesLeft = Math.max(1, (empties + 1) / 2);
+
+		return Math.max(MIN_BUDGET, usable / movesLeft);
+	}
+}
@@ -0,0 +1,181 @@
+package net.thenumenorean.othelloai.search;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size hash table of search results, keyed by the Zobrist key of a
+ * position (see OthelloBoard.getHash()) or by its canonical key (see
+ * OthelloBoard.getCanonicalKey()). Nothing is locked, so one table could be
+ * shared by several searching threads, but for now each search has a table
+ * of its own.
+ * 
+ * Each entry is two longs: the packed result, and the key XORed with the
+ * packed result. A reader only accepts an entry if XORing the two gives back
+ * its key, so an entry torn by two threads writing at once just reads as a
+ * collision.
+ * 
+ * The table keeps no counters of its own, since threads sharing it would
+ * fight over them on every probe. Searches count their own hits, misses and
+ * collisions from what probe returns.
+ * 
+ * @author Francesco
+ *
+ */
+public class TranspositionTable {
+
+	/**
+	 * The score is the exact value of the position
+	 */
+	public static final int EXACT = 1;
+
+	/**
+	 * The score is a lower bound, the search failed high
+	 */
+	public static final int LOWER_BOUND = 2;
+
+	/**
+	 * The score is an upper bound, the search failed low
+	 */
+	public static final int UPPER_BOUND = 3;
+
+	/**
+	 * Move value for a pass
+	 */
+	public static final int PASS = 64;
+
+	/**
+	 * Move value when no best move is known
+	 */
+	public static final int NO_MOVE = 127;
+
+	/**
+	 * Returned by probe when the position's slot holds another position. No
+	 * packed entry is negative.
+	 */
+	public static final long COLLISION = -1;
+
+	// Layout of a packed entry, low bits first:
+	// score 32, depth 8, bound 2, move 7, age 7
+	private static final int DEPTH_SHIFT = 32;
+	private static final int BOUND_SHIFT = 40;
+	private static final int MOVE_SHIFT = 42;
+	private static final int AGE_SHIFT = 49;
+
+	private final long[] table;
+	private final int mask;
+	private int age;
+
+	/**
+	 * Creates a table using at most the given amount of memory. The number of
+	 * entries is rounded down to a power of two.
+	 * 
+	 * @param sizeMB
+	 *            Size of the table in megabytes
+	 */
+	public TranspositionTable(int sizeMB) {
+		long entries = Long.highestOneBit(Math.max(1, ((long) sizeMB << 20) / 16));
+		entries = Math.min(entries, 1 << 29);
+		table = new long[(int) entries * 2];
+		mask = (int) entries - 1;
+		age = 0;
+	}
+
+	/**
+	 * Looks up a position.
+	 * 
+	 * @param key
+	 *            Zobrist key of the position
+	 * @return The packed entry, 0 if the position's slot is empty, or
+	 *         COLLISION if it holds another position. Use the static
+	 *         accessors to read an entry.
+	 */
+	public long probe(long key) {
+		int i = ((int) key & mask) << 1;
+		long data = table[i + 1];
+		long check = table[i];
+
+		if (data == 0)
+			return 0;
+		if ((check ^ data) != key)
+			return COLLISION;
+		return data;
+	}
+
+	/**
+	 * Stores the result of a search. An existing entry for another position
+	 * is only replaced if it is from an earlier search or was not searched as
+	 * deep.
+	 * 
+	 * @param key
+	 *            Zobrist key of the position
+	 * @param depth
+	 *            Depth the position was searched to
+	 * @param bound
+	 *            One of EXACT, LOWER_BOUND or UPPER_BOUND
+	 * @param score
+	 *            The score found
+	 * @param move
+	 *            The best move's square, PASS or NO_MOVE
+	 */
+	public void store(long key, int depth, int bound, int score, int move) {
+		int i = ((int) key & mask) << 1;
+		long old = table[i + 1];
+
+		if (old != 0 && (table[i] ^ old) != key && age(old) == age && depth(old) > depth)
+			return;
+
+		long data = (score & 0xFFFFFFFFL) | ((long) Math.min(depth, 255) << DEPTH_SHIFT)
+				| ((long) bound << BOUND_SHIFT) | ((long) (move & 0x7F) << MOVE_SHIFT)
+				| ((long) age << AGE_SHIFT);
+
+		table[i] = key ^ data;
+		table[i + 1] = data;
+	}
+
+	/**
+	 * Marks the start of a new search, so entries from older searches are
+	 * replaced first.
+	 */
+	public void newSearch() {
+		age = (age + 1) & 0x7F;
+	}
+
+	/**
+	 * Empties the table.
+	 */
+	public void clear() {
+		Arrays.fill(table, 0);
+	}
+
+	public static int score(long entry) {
+		return (int) entry;
+	}
+
+	public static int depth(long entry) {
+		return (int) (entry >>> DEPTH_SHIFT) & 0xFF;
+	}
+
+	public static int bound(long entry) {
+		return (int) (entry >>> BOUND_SHIFT) & 0x3;
+	}
+
+	public static int move(long entry) {
+		return (int) (entry >>> MOVE_SHIFT) & 0x7F;
+	}
+
+	private static int age(long entry) {
+		return (int) (entry >>> AGE_SHIFT) & 0x7F;
+	}
+
+	/**
+	 * @return the number of entries in the table
+	 */
+	public int size() {
+		return mask + 1;
+	}
+
+	@Override
+	public String toString() {
+		return size() + " entries";
+	}
+}
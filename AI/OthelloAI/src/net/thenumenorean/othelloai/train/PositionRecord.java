@@ -0,0 +1,63 @@
+package net.thenumenorean.othelloai.train;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The format of recorded positions used to train evaluators. A record file
+ * is just records one after another, each little endian: the bitboard of the
+ * side to move, the bitboard of the other side, then the final disc
+ * differential for the side to move as a signed byte.
+ * 
+ * @author Francesco
+ *
+ */
+public class PositionRecord {
+
+	/**
+	 * Size of each record
+	 */
+	public static final int BYTES = 17;
+
+	private PositionRecord() {
+	}
+
+	/**
+	 * Adds a record to a little endian buffer.
+	 * 
+	 * @param buf
+	 *            The buffer, with at least BYTES remaining
+	 * @param player
+	 *            Bitboard of the side to move
+	 * @param opponent
+	 *            Bitboard of the other side
+	 * @param diff
+	 *            Discs the side to move ended the game ahead by
+	 */
+	public static void put(ByteBuffer buf, long player, long opponent, int diff) {
+		buf.putLong(player).putLong(opponent).put((byte) diff);
+	}
+
+	/**
+	 * @return the side to move's bitboard of the record at the given offset
+	 *         of a little endian buffer
+	 */
+	public static long player(ByteBuffer buf, int offset) {
+		return buf.getLong(offset);
+	}
+
+	/**
+	 * @return the other side's bitboard of the record at the given offset of
+	 *         a little endian buffer
+	 */
+	public static long opponent(ByteBuffer buf, int offset) {
+		return buf.getLong(offset + 8);
+	}
+
+	/**
+	 * @return the final disc differential of the record at the given offset
+	 *         of a buffer
+	 */
+	public static int diff(ByteBuffer buf, int offset) {
+		return buf.get(offset + 16);
+	}
+}
@@ -0,0 +1,297 @@
+package net.thenumenorean.othelloai.train;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thenumenorean.othelloai.OthelloAI;
+import net.thenumenorean.othelloai.board.BoardSymmetry;
+import net.thenumenorean.othelloai.board.Move;
+import net.thenumenorean.othelloai.board.OthelloBoard;
+import net.thenumenorean.othelloai.board.OthelloBoard.OthelloSide;
+import net.thenumenorean.othelloai.eval.Evaluator;
+import net.thenumenorean.othelloai.search.AlphaBetaSearch;
+import net.thenumenorean.othelloai.search.EndgameSolver;
+import net.thenumenorean.othelloai.search.TranspositionTable;
+
+/**
+ * Plays the AI against itself without any display, on every core, and
+ * writes every position played with the game's final result as
+ * PositionRecords.
+ *
+ * Each game starts with a number of random moves so the games differ, then
+ * both sides search each move to a fixed depth or time limit, and solve the
+ * ending exactly once few enough squares are left.
+ *
+ * Run with "java net.thenumenorean.othelloai.train.SelfPlay <records out>
+ * <games> [random moves] [max depth] [millis per move] [evaluator]". The
+ * evaluator is given as for OthelloAI.
+ *
+ * @author Francesco
+ *
+ */
+public class SelfPlay {
+
+	public static final int DEFAULT_RANDOM_MOVES = 8;
+	public static final int DEFAULT_MAX_DEPTH = 4;
+	public static final long DEFAULT_MOVE_MILLIS = 1000;
+
+	/**
+	 * Empty squares at which endings are solved exactly
+	 */
+	public static final int ENDGAME_EMPTIES = 12;
+
+	/**
+	 * Memory for each thread's transposition table
+	 */
+	public static final int TABLE_MB = 16;
+
+	// How often to report progress
+	private static final int REPORT_GAMES = 100;
+
+	private final Evaluator evaluator;
+	private final int randomMoves;
+	private final int maxDepth;
+	private final long moveMillis;
+
+	private final AtomicInteger gamesStarted = new AtomicInteger();
+	private final AtomicLong positions = new AtomicLong();
+
+	// Where play(File, ...) writes, and a game's records on their way there
+	private FileChannel channel;
+	private final ByteBuffer records = ByteBuffer.allocate(PositionRecord.BYTES * 64).order(ByteOrder.LITTLE_ENDIAN);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println(
+					"Usage: SelfPlay <records out> <games> [random moves] [max depth] [millis per move] [evaluator]");
+			return;
+		}
+
+		File out = new File(args[0]);
+		int games = Integer.parseInt(args[1]);
+		int randomMoves = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RANDOM_MOVES;
+		int maxDepth = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_DEPTH;
+		long moveMillis = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_MOVE_MILLIS;
+		Evaluator evaluator = OthelloAI.parseEvaluator(args.length > 5 ? args[5] : "super");
+
+		SelfPlay selfPlay = new SelfPlay(evaluator, randomMoves, maxDepth, moveMillis);
+		selfPlay.play(out, games, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param evaluator
+	 *            How both sides value positions
+	 * @param randomMoves
+	 *            Moves to play at random at the start of each game
+	 * @param maxDepth
+	 *            Most plies to search each move
+	 * @param moveMillis
+	 *            Most time to search each move
+	 */
+	public SelfPlay(Evaluator evaluator, int randomMoves, int maxDepth, long moveMillis) {
+		this.evaluator = evaluator;
+		this.randomMoves = randomMoves;
+		this.maxDepth = maxDepth;
+		this.moveMillis = moveMillis;
+	}
+
+	/**
+	 * Plays games and writes their positions to a file, replacing it.
+	 *
+	 * @param out
+	 *            File to write PositionRecords to
+	 * @param games
+	 *            Number of games to play
+	 * @param threads
+	 *            Number of games to play at once
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void play(File out, int games, int threads) throws IOException {
+		FileOutputStream stream = new FileOutputStream(out);
+		try {
+			channel = stream.getChannel();
+			play(games, threads);
+			System.err.println("Wrote " + positions.get() + " positions to " + out);
+		} finally {
+			channel = null;
+			stream.close();
+		}
+	}
+
+	/**
+	 * Plays games, passing each to gamePlayed as it finishes.
+	 *
+	 * @param games
+	 *            Number of games to play
+	 * @param threads
+	 *            Number of games to play at once
+	 * @throws IOException
+	 *             If gamePlayed fails
+	 */
+	public void play(int games, int threads) throws IOException {
+		long start = System.currentTimeMillis();
+		gamesStarted.set(0);
+		positions.set(0);
+
+		Player[] players = new Player[threads];
+		Thread[] running = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			players[t] = new Player(games, new Random(start + t));
+			running[t] = new Thread(players[t], "SelfPlay-" + t);
+			running[t].start();
+		}
+
+		for (int t = 0; t < threads; t++) {
+			try {
+				running[t].join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while playing");
+			}
+			if (players[t].failure != null)
+				throw players[t].failure;
+		}
+
+		System.err.println("Played " + games + " games, " + positions.get() + " positions in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Called from the playing threads, one at a time, with each finished
+	 * game. Writes the game's positions to the file being played into, each
+	 * in its canonical orientation so that every repeat of a position is the
+	 * same record.
+	 *
+	 * @param players
+	 *            Bitboard of the side to move in each position of the game
+	 * @param opponents
+	 *            Bitboard of the other side in each position
+	 * @param squares
+	 *            Square played from each position
+	 * @param diffs
+	 *            Discs the side to move in each position ended the game
+	 *            ahead by
+	 * @param count
+	 *            Number of positions, not counting passes
+	 * @throws IOException
+	 *             If the game can't be recorded
+	 */
+	protected synchronized void gamePlayed(long[] players, long[] opponents, int[] squares, int[] diffs, int count)
+			throws IOException {
+		records.clear();
+		for (int i = 0; i < count; i++) {
+			int symmetry = OthelloBoard.canonicalSymmetry(players[i], opponents[i]);
+			PositionRecord.put(records, BoardSymmetry.transform(players[i], symmetry),
+					BoardSymmetry.transform(opponents[i], symmetry), diffs[i]);
+		}
+
+		records.flip();
+		while (records.hasRemaining())
+			channel.write(records);
+	}
+
+	/**
+	 * Plays games one after another until enough have been started.
+	 *
+	 * @author Francesco
+	 *
+	 */
+	private class Player implements Runnable {
+
+		private final int games;
+		private final Random random;
+
+		private final AlphaBetaSearch search;
+		private final EndgameSolver solver;
+
+		// Each position of the game being played, at most one per square
+		private final long[] players = new long[64];
+		private final long[] opponents = new long[64];
+		private final int[] squares = new int[64];
+		private final int[] diffs = new int[64];
+		private final OthelloSide[] sides = new OthelloSide[64];
+
+		IOException failure;
+
+		public Player(int games, Random random) {
+			this.games = games;
+			this.random = random;
+
+			search = new AlphaBetaSearch(new TranspositionTable(TABLE_MB), evaluator);
+			search.setMaxDepth(maxDepth);
+			search.setVerbose(false);
+			solver = new EndgameSolver();
+			solver.setVerbose(false);
+		}
+
+		@Override
+		public void run() {
+			try {
+				int game;
+				while ((game = gamesStarted.getAndIncrement()) < games) {
+					playGame();
+					if ((game + 1) % REPORT_GAMES == 0)
+						System.err.println("Played " + (game + 1) + " games, " + positions.get() + " positions");
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Plays one game and records its positions.
+		 */
+		private void playGame() throws IOException {
+			OthelloBoard board = new OthelloBoard();
+			int count = 0;
+
+			for (int ply = 0; !board.isDone(); ply++) {
+				OthelloSide side = board.getToMove();
+				long moves = board.getMoveMask(side);
+				if (moves == 0) {
+					board.pass(side);
+					continue;
+				}
+
+				Move move = chooseMove(board, moves, ply);
+				players[count] = board.getBits(side);
+				opponents[count] = board.getBits(side.opposite());
+				squares[count] = move.toSquare();
+				sides[count++] = side;
+
+				board.move(move, side);
+			}
+
+			int blackLead = board.countBlack() - board.countWhite();
+			for (int i = 0; i < count; i++)
+				diffs[i] = sides[i] == OthelloSide.BLACK ? blackLead : -blackLead;
+
+			gamePlayed(players, opponents, squares, diffs, count);
+			positions.addAndGet(count);
+		}
+
+		private Move chooseMove(OthelloBoard board, long moves, int ply) {
+			if (ply < randomMoves) {
+				int skip = random.nextInt(Long.bitCount(moves));
+				for (int i = 0; i < skip; i++)
+					moves &= moves - 1;
+				return Move.fromSquare(Long.numberOfTrailingZeros(moves));
+			}
+
+			int empties = 64 - Long.bitCount(board.getBits(OthelloSide.BLACK) | board.getBits(OthelloSide.WHITE));
+			if (empties <= ENDGAME_EMPTIES) {
+				Move solved = solver.solve(board, moveMillis);
+				if (solved != null)
+					return solved;
+			}
+			return search.findBestMove(board, moveMillis);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package net.thenumenorean.othelloai.train;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.thenumenorean.othelloai.eval.PatternEvaluator;
+
+/**
+ * Fits PatternEvaluator weights to the final results of recorded positions,
+ * by stochastic gradient descent on the squared error in discs.
+ *
+ * The record file is streamed through a window of memory at a time, so it
+ * can be far bigger than the heap. Each thread trains on its own part of the
+ * file, all updating the same weights without locking. Updates are sparse
+ * enough that the rare lost update does no harm.
+ *
+ * Every position is also trained on with the sides swapped, so the weights
+ * value both sides alike.
+ *
+ * Run with "java net.thenumenorean.othelloai.train.WeightTrainer <records>
+ * <weights out> [epochs] [rate] [weights in]".
+ *
+ * @author Francesco
+ *
+ */
+public class WeightTrainer {
+
+	public static final int DEFAULT_EPOCHS = 5;
+	public static final float DEFAULT_RATE = 0.005f;
+
+	/**
+	 * How much the learning rate shrinks after each epoch
+	 */
+	public static final float RATE_DECAY = 0.7f;
+
+	// Records mapped at once by each thread
+	private static final int WINDOW_RECORDS = 1 << 20;
+
+	private final float[] weights;
+	private final int threads;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: WeightTrainer <records> <weights out> [epochs] [rate] [weights in]");
+			return;
+		}
+
+		File records = new File(args[0]);
+		File out = new File(args[1]);
+		int epochs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_EPOCHS;
+		float rate = args.length > 3 ? Float.parseFloat(args[3]) : DEFAULT_RATE;
+
+		WeightTrainer trainer = new WeightTrainer(Runtime.getRuntime().availableProcessors());
+		if (args.length > 4)
+			trainer.start(PatternEvaluator.load(new File(args[4])));
+
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			long start = System.currentTimeMillis();
+			double rmse = trainer.train(records, rate);
+			System.err.println("Epoch " + (epoch + 1) + ": rate " + rate + ", error " + rmse + " discs, "
+					+ (System.currentTimeMillis() - start) + "ms");
+			rate *= RATE_DECAY;
+		}
+
+		trainer.toEvaluator().save(out);
+		System.err.println("Wrote " + out);
+	}
+
+	/**
+	 * Creates a trainer with every weight at 0.
+	 *
+	 * @param threads
+	 *            Number of threads to train with
+	 */
+	public WeightTrainer(int threads) {
+		this.threads = threads;
+		weights = new float[PatternEvaluator.PHASES * PatternEvaluator.PHASE_SIZE];
+	}
+
+	/**
+	 * Starts from the weights of an existing evaluator.
+	 *
+	 * @param evaluator
+	 *            The evaluator to copy
+	 */
+	public void start(PatternEvaluator evaluator) {
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = (float) evaluator.getWeight(i) / PatternEvaluator.SCALE;
+	}
+
+	/**
+	 * Makes one pass over a record file.
+	 *
+	 * @param records
+	 *            File of PositionRecords
+	 * @param rate
+	 *            Learning rate
+	 * @return The root mean squared error over the pass, in discs
+	 * @throws IOException
+	 *             If the file can't be read
+	 */
+	public double train(File records, float rate) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(records, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long count = channel.size() / PositionRecord.BYTES;
+
+			Worker[] workers = new Worker[threads];
+			Thread[] running = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				workers[t] = new Worker(channel, count * t / threads, count * (t + 1) / threads, rate);
+				running[t] = new Thread(workers[t], "WeightTrainer-" + t);
+				running[t].start();
+			}
+
+			double squaredError = 0;
+			for (int t = 0; t < threads; t++) {
+				try {
+					running[t].join();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while training");
+				}
+				if (workers[t].failure != null)
+					throw workers[t].failure;
+				squaredError += workers[t].squaredError;
+			}
+			return Math.sqrt(squaredError / Math.max(1, 2 * count));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return an evaluator with the weights trained so far
+	 */
+	public PatternEvaluator toEvaluator() {
+		short[] scaled = new short[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			long w = Math.round(weights[i] * PatternEvaluator.SCALE);
+			scaled[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, w));
+		}
+		return new PatternEvaluator(scaled);
+	}
+
+	/**
+	 * Takes one gradient step on a position.
+	 *
+	 * @return The squared error before the step
+	 */
+	private double step(long player, long opponent, int diff, float rate, int[] index) {
+		PatternEvaluator.indices(player, opponent, index);
+
+		float predicted = 0;
+		for (int i = 0; i < index.length; i++)
+			predicted += weights[index[i]];
+
+		float error = diff - predicted;
+		float delta = rate * error;
+		for (int i = 0; i < index.length; i++)
+			weights[index[i]] += delta;
+		return (double) error * error;
+	}
+
+	/**
+	 * Trains on one range of records.
+	 *
+	 * @author Francesco
+	 *
+	 */
+	private class Worker implements Runnable {
+
+		private final FileChannel channel;
+		private final long first, end;
+		private final float rate;
+
+		double squaredError;
+		IOException failure;
+
+		public Worker(FileChannel channel, long first, long end, float rate) {
+			this.channel = channel;
+			this.first = first;
+			this.end = end;
+			this.rate = rate;
+		}
+
+		@Override
+		public void run() {
+			int[] index = new int[PatternEvaluator.INSTANCES];
+			try {
+				for (long r = first; r < end; r += WINDOW_RECORDS) {
+					int n = (int) Math.min(WINDOW_RECORDS, end - r);
+					MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, r * PositionRecord.BYTES,
+							(long) n * PositionRecord.BYTES);
+					window.order(ByteOrder.LITTLE_ENDIAN);
+
+					for (int i = 0; i < n; i++) {
+						int offset = i * PositionRecord.BYTES;
+						long player = PositionRecord.player(window, offset);
+						long opponent = PositionRecord.opponent(window, offset);
+						int diff = PositionRecord.diff(window, offset);
+
+						squaredError += step(player, opponent, diff, rate, index);
+						squaredError += step(opponent, player, -diff, rate, index);
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+}